@@ -0,0 +1,37 @@
+package org.elasticsearch.plugin.elasticfence.benchmark;
+
+import org.elasticsearch.plugin.elasticfence.provider.AuthProvider;
+import org.elasticsearch.plugin.elasticfence.provider.BasicAuthorization;
+import org.elasticsearch.plugin.elasticfence.provider.Credentials;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * cost of parsing the Basic authorization header, without any credential check.
+ */
+@State(Scope.Benchmark)
+public class BasicHeaderBenchmark {
+    private static final Credentials CREDENTIALS = Credentials.builder()
+            .username("user")
+            .password("password")
+            .build();
+
+    private AuthProvider provider;
+    private String authorization;
+
+    @Setup
+    public void setup() {
+        provider = new AuthProvider() {
+
+            @Override
+            protected Credentials authenticate(String username, String password) {
+                return CREDENTIALS;
+            }
+        };
+        authorization = Benchmarks.basic("kibana_user", "s3cr3t-passw0rd");
+    }
+
+    @Benchmark
+    public Credentials parse() throws Exception {
+        return provider.authenticate(BasicAuthorization.parse(authorization));
+    }
+}
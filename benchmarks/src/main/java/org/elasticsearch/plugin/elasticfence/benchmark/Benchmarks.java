@@ -0,0 +1,14 @@
+package org.elasticsearch.plugin.elasticfence.benchmark;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.codec.binary.Base64;
+
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    static String basic(String username, String password) {
+        return "Basic " + Base64.encodeBase64String((username + ":" + password).getBytes(Charsets.UTF_8));
+    }
+}
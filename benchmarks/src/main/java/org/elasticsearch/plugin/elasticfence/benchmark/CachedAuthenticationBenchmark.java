@@ -0,0 +1,52 @@
+package org.elasticsearch.plugin.elasticfence.benchmark;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.elasticfence.provider.Credentials;
+import org.elasticsearch.plugin.elasticfence.provider.InMemoryAuthProvider;
+import org.openjdk.jmh.annotations.*;
+
+import static org.elasticsearch.plugin.elasticfence.Constants.*;
+
+/**
+ * authentication answered by InMemoryAuthProvider, for the root user and for a cached LDAP login.
+ */
+@State(Scope.Benchmark)
+public class CachedAuthenticationBenchmark {
+    private InMemoryAuthProvider provider;
+    private String rootAuthorization;
+    private String cachedAuthorization;
+    private String wrongPasswordAuthorization;
+
+    @Setup
+    public void setup() {
+        provider = InMemoryAuthProvider.getInstance();
+        provider.init(Settings.builder()
+                .put(SETTINGS_ROOT_USERNAME, "elastic")
+                .put(SETTINGS_ROOT_PASSWORD, "root-password")
+                .put(SETTINGS_LDAP_CACHE_EXPIRE_SECONDS, 3600)
+                .build());
+        provider.add("cached_user", Credentials.builder()
+                .username("cached_user")
+                .password("cached-password")
+                .build());
+
+        rootAuthorization = Benchmarks.basic("elastic", "root-password");
+        cachedAuthorization = Benchmarks.basic("cached_user", "cached-password");
+        wrongPasswordAuthorization = Benchmarks.basic("cached_user", "wrong-password");
+    }
+
+    @Benchmark
+    public Credentials rootUser() throws Exception {
+        return provider.authenticate(rootAuthorization);
+    }
+
+    @Benchmark
+    public Credentials cachedUser() throws Exception {
+        return provider.authenticate(cachedAuthorization);
+    }
+
+    @Benchmark
+    public Credentials wrongPassword() throws Exception {
+        return provider.authenticate(wrongPasswordAuthorization);
+    }
+}
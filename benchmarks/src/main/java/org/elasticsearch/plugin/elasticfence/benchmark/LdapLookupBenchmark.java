@@ -0,0 +1,99 @@
+package org.elasticsearch.plugin.elasticfence.benchmark;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.elasticfence.provider.Credentials;
+import org.elasticsearch.plugin.elasticfence.provider.LdapAuthProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.plugin.elasticfence.Constants.*;
+
+/**
+ * cache-miss authentication by LdapAuthProvider against an in-process directory server.
+ * every thread logs in as its own user, so that concurrent lookups are not coalesced.
+ */
+@State(Scope.Benchmark)
+public class LdapLookupBenchmark {
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String BIND_DN = "cn=admin," + BASE_DN;
+    private static final String BIND_PASSWORD = "admin-password";
+    private static final String GROUP_CN = "elastic_users";
+    private static final int USERS = 64;
+
+    private InMemoryDirectoryServer server;
+    private LdapAuthProvider provider;
+
+    @State(Scope.Thread)
+    public static class User {
+        private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+        private String authorization;
+
+        @Setup
+        public void setup() {
+            int id = SEQUENCE.getAndIncrement() % USERS;
+            authorization = Benchmarks.basic("user" + id, "password" + id);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        config.setSchema(null);
+
+        server = new InMemoryDirectoryServer(config);
+        server.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+        server.add("dn: ou=Users," + BASE_DN, "objectClass: organizationalUnit", "ou: Users");
+        server.add("dn: ou=Groups," + BASE_DN, "objectClass: organizationalUnit", "ou: Groups");
+        String[] group = new String[USERS + 3];
+        group[0] = "dn: cn=" + GROUP_CN + ",ou=Groups," + BASE_DN;
+        group[1] = "objectClass: groupOfNames";
+        group[2] = "cn: " + GROUP_CN;
+        for (int i = 0; i < USERS; i++) {
+            String dn = "cn=user" + i + ",ou=Users," + BASE_DN;
+            server.add("dn: " + dn, "objectClass: person", "cn: user" + i, "sn: user" + i, "userPassword: password" + i);
+            group[i + 3] = "member: " + dn;
+        }
+        server.add(group);
+        server.startListening();
+
+        provider = LdapAuthProvider.getInstance();
+        provider.init(Settings.builder()
+                .put(SETTINGS_LDAP_ENABLED, true)
+                .put(SETTINGS_LDAP_HOST, "localhost")
+                .put(SETTINGS_LDAP_PORT, server.getListenPort())
+                .put(SETTINGS_LDAP_BIND_DN, BIND_DN)
+                .put(SETTINGS_LDAP_BIND_PASSWORD, BIND_PASSWORD)
+                .put(SETTINGS_LDAP_USER_BASE, "ou=Users," + BASE_DN)
+                .put(SETTINGS_LDAP_USER_FILTER, "(&(objectClass=person)(cn={USERNAME}))")
+                .put(SETTINGS_LDAP_GROUP_BASE, "ou=Groups," + BASE_DN)
+                .put(SETTINGS_LDAP_GROUP_FILTER, "(&(objectClass=groupOfNames)(member={MEMBER_DN}))")
+                .put(SETTINGS_LDAP_GROUP_CN, GROUP_CN)
+                .put(SETTINGS_LDAP_CACHE_ENABLED, false)
+                .put(SETTINGS_LDAP_POOL_MAX_SIZE, 32)
+                .build());
+
+        // a wrong filter or group would measure the fast rejection path instead
+        for (int i = 0; i < USERS; i++) {
+            if (provider.authenticate(Benchmarks.basic("user" + i, "password" + i)) == null) {
+                throw new IllegalStateException("benchmark user rejected by ldap ! - USER:user" + i);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.shutDown(true);
+    }
+
+    @Benchmark
+    public Credentials lookup(User user) throws Exception {
+        return provider.authenticate(user.authorization);
+    }
+}
@@ -6,73 +6,318 @@ import org.apache.logging.log4j.Logger;
 import org.elasticsearch.client.node.NodeClient;
 import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.plugin.elasticfence.audit.AuthAudit;
+import org.elasticsearch.plugin.elasticfence.limit.RateLimiter;
 import org.elasticsearch.plugin.elasticfence.provider.AuthProvider;
+import org.elasticsearch.plugin.elasticfence.provider.BasicAuthorization;
 import org.elasticsearch.plugin.elasticfence.provider.Credentials;
+import org.elasticsearch.plugin.elasticfence.route.AnonymousRoutes;
+import org.elasticsearch.plugin.elasticfence.session.SessionTokenService;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
 import org.elasticsearch.rest.*;
+import org.elasticsearch.threadpool.ThreadPool;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.plugin.elasticfence.Constants.AUTH_THREAD_POOL_NAME;
 
 public class AuthRestHandler implements RestHandler {
     private static final Logger LOG = ESLoggerFactory.getLogger("plugin.elasticfence");
 
     private final RestHandler restHandler;
     private final List<AuthProvider> authProviders;
+    private final ThreadPool threadPool;
+    private final RateLimiter userLimiter;
+    private final RateLimiter addressLimiter;
+    private final SessionTokenService sessions;
+    private final AnonymousRoutes anonymousRoutes;
 
-    public AuthRestHandler(RestHandler restHandler, List<AuthProvider> authProviders) {
+    public AuthRestHandler(RestHandler restHandler, List<AuthProvider> authProviders, ThreadPool threadPool,
+                           RateLimiter userLimiter, RateLimiter addressLimiter, SessionTokenService sessions,
+                           AnonymousRoutes anonymousRoutes) {
         this.restHandler = restHandler;
         this.authProviders = authProviders;
+        this.threadPool = threadPool;
+        this.userLimiter = userLimiter;
+        this.addressLimiter = addressLimiter;
+        this.sessions = sessions;
+        this.anonymousRoutes = anonymousRoutes;
     }
 
     @Override
     public void handleRequest(RestRequest request, RestChannel channel, NodeClient client) throws Exception {
-        if (accept(request)) {
+        // health checks and alike. no limit, no audit
+        if (anonymousRoutes.matches(request)) {
+            AuthStats.getInstance().increment("anonymous.requests");
             restHandler.handleRequest(request, channel, client);
-        } else {
-            channel.sendResponse(new RestResponse() {
+            return;
+        }
+        if (!addressLimiter.tryAcquire(address(request.getRemoteAddress()))) {
+            AuthAudit.getInstance().failure("rate_limited_address", null, request.getRemoteAddress(), null);
+            AuthStats.getInstance().increment("rejections.rate_limited.address");
+            sendResponse(channel, RestStatus.TOO_MANY_REQUESTS);
+            return;
+        }
 
-                @Override
-                public RestStatus status() {
-                    return RestStatus.UNAUTHORIZED;
-                }
+        // a valid session token is all it takes. no provider, no password check. an expiring one is renewed by the password, if sent
+        SessionTokenService.Session session = sessions.verify(sessions.token(request));
+        if (session != null && !(session.isExpiring() && request.header(HttpHeaders.AUTHORIZATION) != null)) {
+            String sessionUser = session.getUsername();
+            if (!userLimiter.tryAcquire(sessionUser)) {
+                AuthAudit.getInstance().failure("rate_limited_user", sessionUser, request.getRemoteAddress(), null);
+                AuthStats.getInstance().increment("rejections.rate_limited.user");
+                sendResponse(channel, RestStatus.TOO_MANY_REQUESTS);
+                return;
+            }
+            AuthAudit.getInstance().success(sessionUser, "session", request.getRemoteAddress());
+            restHandler.handleRequest(request, channel, client);
+            return;
+        }
 
-                @Override
-                public String contentType() {
-                    return "application/json";
-                }
+        List<String> authValues = request.getAllHeaderValues(HttpHeaders.AUTHORIZATION);
+        if (CollectionUtils.size(authValues) != 1) {
+            AuthAudit.getInstance().failure("no_header", null, request.getRemoteAddress(), null);
+            AuthStats.getInstance().increment("rejections.no_header");
+            sendResponse(channel, RestStatus.UNAUTHORIZED);
+            return;
+        }
+        BasicAuthorization authorization = BasicAuthorization.parse(authValues.get(0));
+        if (authorization == null) {
+            AuthAudit.getInstance().failure("malformed_header", null, request.getRemoteAddress(), null);
+            AuthStats.getInstance().increment("rejections.malformed_header");
+            sendResponse(channel, RestStatus.UNAUTHORIZED);
+            return;
+        }
+        // before any provider, so that a runaway client can't keep ldap busy
+        if (!userLimiter.tryAcquire(authorization.getUsername())) {
+            AuthAudit.getInstance().failure("rate_limited_user", authorization.getUsername(), request.getRemoteAddress(), null);
+            AuthStats.getInstance().increment("rejections.rate_limited.user");
+            sendResponse(channel, RestStatus.TOO_MANY_REQUESTS);
+            return;
+        }
+
+        // only providers that may know the user are asked. the owner of the user, if any, alone
+        List<AuthProvider> localProviders = new ArrayList<>(authProviders.size());
+        List<AuthProvider> blockingProviders = new ArrayList<>(authProviders.size());
+        for (AuthProvider provider : authProviders) {
+            AuthProvider.Route route = provider.route(authorization.getUsername());
+            if (route == AuthProvider.Route.SKIP) {
+                continue;
+            }
+            if (route == AuthProvider.Route.OWNER) {
+                localProviders.clear();
+                blockingProviders.clear();
+            }
+            (provider.isBlocking() ? blockingProviders : localProviders).add(provider);
+            if (route == AuthProvider.Route.OWNER) {
+                break;
+            }
+        }
+
+        // cached and local users are answered on the network thread
+        if (accept(request, authorization, localProviders)) {
+            proceed(request, channel, client, authorization.getUsername());
+            return;
+        }
+        if (blockingProviders.isEmpty() || threadPool == null) {
+            reject(request, channel, authorization.getUsername());
+            return;
+        }
+
+        // cache miss. remote lookups must not hold the network thread.
+        // several remote providers are asked at once, and the first one to accept wins
+        FirstSuccess firstSuccess = new FirstSuccess(request, channel, client, authorization.getUsername(), blockingProviders.size());
+        for (AuthProvider provider : blockingProviders) {
+            try {
+                threadPool.executor(AUTH_THREAD_POOL_NAME).execute(() -> {
+                    try {
+                        firstSuccess.complete(accept(request, authorization, Collections.singletonList(provider)));
+                    } catch (Exception e) {
+                        LOG.error("request handling error ! - REMOTE:{}", request.getRemoteAddress(), e);
+                        sendErrorResponse(channel, e);
+                    }
+                });
+            } catch (EsRejectedExecutionException e) {
+                firstSuccess.rejected();
+            }
+        }
+    }
 
-                @Override
-                public BytesReference content() {
-                    return new BytesArray("");
+    /**
+     * hands the request over once, on the first accepting provider, or rejects it when all have refused.
+     */
+    private class FirstSuccess {
+        private final RestRequest request;
+        private final RestChannel channel;
+        private final NodeClient client;
+        private final String username;
+        private final int providers;
+        private final AtomicInteger remaining;
+        private final AtomicInteger rejected = new AtomicInteger();
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        FirstSuccess(RestRequest request, RestChannel channel, NodeClient client, String username, int providers) {
+            this.request = request;
+            this.channel = channel;
+            this.client = client;
+            this.username = username;
+            this.providers = providers;
+            this.remaining = new AtomicInteger(providers);
+        }
+
+        void complete(boolean accepted) throws Exception {
+            if (accepted) {
+                if (done.compareAndSet(false, true)) {
+                    proceed(request, channel, client, username);
                 }
-            });
+            } else if (remaining.decrementAndGet() == 0 && done.compareAndSet(false, true)) {
+                reject(request, channel, username);
+            }
+        }
+
+        void rejected() {
+            if (rejected.incrementAndGet() == providers && done.compareAndSet(false, true)) {
+                AuthAudit.getInstance().failure("queue_full", username, request.getRemoteAddress(), null);
+                AuthStats.getInstance().increment("rejections.queue_full");
+                sendResponse(channel, RestStatus.TOO_MANY_REQUESTS);
+            } else if (remaining.decrementAndGet() == 0 && done.compareAndSet(false, true)) {
+                reject(request, channel, username);
+            }
         }
     }
 
-    private boolean accept(RestRequest request) {
-        List<String> authValues = request.getAllHeaderValues(HttpHeaders.AUTHORIZATION);
-        if (CollectionUtils.size(authValues) != 1) {
-            LOG.info("auth fail ! - not found authorization header - REMOTE:{}", request.getRemoteAddress());
-            return false;
+    /**
+     * hand a request authenticated by password over, with a session token in the response if sessions are enabled.
+     */
+    private void proceed(RestRequest request, RestChannel channel, NodeClient client, String username) throws Exception {
+        if (sessions.isEnabled()) {
+            channel = new SessionChannel(channel, sessions.issue(username));
         }
+        restHandler.handleRequest(request, channel, client);
+    }
 
-        Credentials credentials = null;
-        for (AuthProvider provider : authProviders) {
+    private void reject(RestRequest request, RestChannel channel, String username) {
+        AuthAudit.getInstance().failure("unauthorized", username, request.getRemoteAddress(), null);
+        AuthStats.getInstance().increment("rejections.unauthorized");
+        sendResponse(channel, RestStatus.UNAUTHORIZED);
+    }
+
+    private boolean accept(RestRequest request, BasicAuthorization authorization, List<AuthProvider> providers) {
+        for (AuthProvider provider : providers) {
+            long start = System.nanoTime();
             try {
-                credentials = provider.authenticate(authValues.get(0));
+                Credentials credentials = provider.authenticate(authorization);
+                AuthStats.getInstance().record("provider." + provider.name(), start, credentials != null);
                 if (credentials != null) {
-                    break;
+                    AuthAudit.getInstance().success(credentials.getUsername(), provider.name(), request.getRemoteAddress());
+                    return true;
                 }
             } catch (Exception e) {
+                AuthStats.getInstance().record("provider." + provider.name(), start, false);
+                AuthStats.getInstance().increment("provider." + provider.name() + ".errors");
                 LOG.error("provider error ! - skip this provider - {} REMOTE:{}", provider, request.getRemoteAddress());
             }
         }
-        if (credentials != null) {
-            LOG.info("auth success - {} REMOTE:{}", credentials, request.getRemoteAddress());
-            return true;
-        } else {
-            LOG.info("auth fail ! - REMOTE:{}", request.getRemoteAddress());
-            return false;
+        return false;
+    }
+
+    /**
+     * the ip of a client, without the port, which changes per connection.
+     */
+    private static String address(SocketAddress remoteAddress) {
+        if (remoteAddress instanceof InetSocketAddress && ((InetSocketAddress) remoteAddress).getAddress() != null) {
+            return ((InetSocketAddress) remoteAddress).getAddress().getHostAddress();
+        }
+        return remoteAddress == null ? null : remoteAddress.toString();
+    }
+
+    private static void sendErrorResponse(RestChannel channel, Exception e) {
+        try {
+            channel.sendResponse(new BytesRestResponse(channel, e));
+        } catch (Exception inner) {
+            LOG.error("failed to send error response !", inner);
+        }
+    }
+
+    private static void sendResponse(RestChannel channel, RestStatus status) {
+        channel.sendResponse(new RestResponse() {
+
+            @Override
+            public RestStatus status() {
+                return status;
+            }
+
+            @Override
+            public String contentType() {
+                return "application/json";
+            }
+
+            @Override
+            public BytesReference content() {
+                return new BytesArray("");
+            }
+        });
+    }
+
+    /**
+     * adds the session token to the response, both as a cookie for browsers and as a header for other clients.
+     */
+    private class SessionChannel implements RestChannel {
+        private final RestChannel channel;
+        private final String token;
+
+        SessionChannel(RestChannel channel, String token) {
+            this.channel = channel;
+            this.token = token;
+        }
+
+        @Override
+        public void sendResponse(RestResponse response) {
+            response.addHeader("Set-Cookie", sessions.cookie(token));
+            response.addHeader(SessionTokenService.HEADER_NAME, token);
+            channel.sendResponse(response);
+        }
+
+        @Override
+        public XContentBuilder newBuilder() throws IOException {
+            return channel.newBuilder();
+        }
+
+        @Override
+        public XContentBuilder newErrorBuilder() throws IOException {
+            return channel.newErrorBuilder();
+        }
+
+        @Override
+        public XContentBuilder newBuilder(XContentType xContentType, boolean useFiltering) throws IOException {
+            return channel.newBuilder(xContentType, useFiltering);
+        }
+
+        @Override
+        public BytesStreamOutput bytesOutput() {
+            return channel.bytesOutput();
+        }
+
+        @Override
+        public RestRequest request() {
+            return channel.request();
+        }
+
+        @Override
+        public boolean detailedErrorsEnabled() {
+            return channel.detailedErrorsEnabled();
         }
     }
 }
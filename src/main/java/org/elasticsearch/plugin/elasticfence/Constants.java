@@ -12,15 +12,67 @@ public interface Constants {
     String SETTINGS_LDAP_HOST = "ldap.host";
     String SETTINGS_LDAP_PORT = "ldap.port";
     String SETTINGS_LDAP_SSL = "ldap.ssl";
+    String SETTINGS_LDAP_STRATEGY = "ldap.strategy";
+    String SETTINGS_LDAP_HEALTH_CHECK_SECONDS = "ldap.health_check_seconds";
+    String SETTINGS_LDAP_TIMEOUT_MILLIS = "ldap.timeout_millis";
+    String SETTINGS_LDAP_PAGE_SIZE = "ldap.page_size";
+    String SETTINGS_LDAP_PIPELINE_CONNECTIONS = "ldap.pipeline.connections";
     String SETTINGS_LDAP_BIND_DN = "ldap.bind.dn";
     String SETTINGS_LDAP_BIND_PASSWORD = "ldap.bind.password";
     String SETTINGS_LDAP_USER_BASE = "ldap.user.base";
     String SETTINGS_LDAP_USER_FILTER = "ldap.user.filter";
+    String SETTINGS_LDAP_USER_INDEX_ENABLED = "ldap.user.index.enabled";
+    String SETTINGS_LDAP_USER_INDEX_ATTRIBUTE = "ldap.user.index.attribute";
+    String SETTINGS_LDAP_USER_INDEX_TIMESTAMP_ATTRIBUTE = "ldap.user.index.timestamp_attribute";
+    String SETTINGS_LDAP_USER_INDEX_SYNC_SECONDS = "ldap.user.index.sync_seconds";
+    String SETTINGS_LDAP_USER_INDEX_RELOAD_SECONDS = "ldap.user.index.reload_seconds";
     String SETTINGS_LDAP_GROUP_BASE = "ldap.group.base";
     String SETTINGS_LDAP_GROUP_FILTER = "ldap.group.filter";
     String SETTINGS_LDAP_GROUP_CN = "ldap.group.cn";
+    String SETTINGS_LDAP_GROUP_MEMBER_ATTRIBUTE = "ldap.group.member_attribute";
+    String SETTINGS_LDAP_GROUP_REFRESH_SECONDS = "ldap.group.refresh_seconds";
+    String SETTINGS_LDAP_GROUP_USE_MEMBER_OF = "ldap.group.use_member_of";
     String SETTINGS_LDAP_CACHE_ENABLED = "ldap.cache.enabled";
     String SETTINGS_LDAP_CACHE_EXPIRE_SECONDS = "ldap.cache.expire_seconds";
+    String SETTINGS_LDAP_CACHE_MAX_SIZE = "ldap.cache.max_size";
+    String SETTINGS_LDAP_CACHE_SWEEP_SECONDS = "ldap.cache.sweep_seconds";
+    String SETTINGS_LDAP_CACHE_REFRESH_AHEAD_SECONDS = "ldap.cache.refresh_ahead_seconds";
+    String SETTINGS_LDAP_CACHE_STALE_SECONDS = "ldap.cache.stale_seconds";
+    String SETTINGS_LDAP_CACHE_SHARED = "ldap.cache.shared";
+    String SETTINGS_LDAP_CACHE_SNAPSHOT_SECONDS = "ldap.cache.snapshot_seconds";
+    String SETTINGS_LDAP_CACHE_SNAPSHOT_KEY = "ldap.cache.snapshot_key";
+    String SETTINGS_LDAP_NEGATIVE_CACHE_EXPIRE_SECONDS = "ldap.negative_cache.expire_seconds";
+    String SETTINGS_LDAP_NEGATIVE_CACHE_MAX_SIZE = "ldap.negative_cache.max_size";
+    String SETTINGS_LDAP_POOL_MIN_SIZE = "ldap.pool.min_size";
+    String SETTINGS_LDAP_POOL_MAX_SIZE = "ldap.pool.max_size";
+    String SETTINGS_LDAP_POOL_MAX_WAIT_MILLIS = "ldap.pool.max_wait_millis";
+    String SETTINGS_LDAP_POOL_IDLE_SECONDS = "ldap.pool.idle_seconds";
+    String SETTINGS_LDAP_BREAKER_ENABLED = "ldap.breaker.enabled";
+    String SETTINGS_LDAP_BREAKER_ERROR_RATE = "ldap.breaker.error_rate";
+    String SETTINGS_LDAP_BREAKER_SLOW_MILLIS = "ldap.breaker.slow_millis";
+    String SETTINGS_LDAP_BREAKER_MIN_CALLS = "ldap.breaker.min_calls";
+    String SETTINGS_LDAP_BREAKER_WINDOW_SECONDS = "ldap.breaker.window_seconds";
+    String SETTINGS_LDAP_BREAKER_OPEN_SECONDS = "ldap.breaker.open_seconds";
+    String SETTINGS_LDAP_BREAKER_HALF_OPEN_CALLS = "ldap.breaker.half_open_calls";
 
+    String SETTINGS_RATE_LIMIT_USER_PER_SECOND = "rate_limit.user.per_second";
+    String SETTINGS_RATE_LIMIT_USER_BURST = "rate_limit.user.burst";
+    String SETTINGS_RATE_LIMIT_ADDRESS_PER_SECOND = "rate_limit.address.per_second";
+    String SETTINGS_RATE_LIMIT_ADDRESS_BURST = "rate_limit.address.burst";
+    String SETTINGS_RATE_LIMIT_MAX_KEYS = "rate_limit.max_keys";
+    String SETTINGS_SESSION_ENABLED = "session.enabled";
+    String SETTINGS_SESSION_TTL_SECONDS = "session.ttl_seconds";
+    String SETTINGS_SESSION_KEY = "session.key";
+    String SETTINGS_AUDIT_ENABLED = "audit.enabled";
+    String SETTINGS_AUDIT_BUFFER_SIZE = "audit.buffer_size";
+    String SETTINGS_AUDIT_FLUSH_MILLIS = "audit.flush_millis";
+    String SETTINGS_AUDIT_SUMMARY_SECONDS = "audit.summary_seconds";
+    String SETTINGS_AUDIT_SUCCESS_SAMPLE_RATE = "audit.success_sample_rate";
+    String SETTINGS_ANONYMOUS_ROUTES = "anonymous.routes";
+    String SETTINGS_ANONYMOUS_SOURCES = "anonymous.sources";
+
+    String AUTH_THREAD_POOL_NAME = "elasticfence_auth";
+
+    // default of ldap.page_size
     int LDAP_PAGE_SIZE = 100;
 }
@@ -3,19 +3,56 @@ package org.elasticsearch.plugin.elasticfence;
 import com.google.common.collect.ImmutableList;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.plugin.elasticfence.audit.AuthAudit;
+import org.elasticsearch.plugin.elasticfence.cache.CacheInvalidateAction;
+import org.elasticsearch.plugin.elasticfence.cache.CachePublishAction;
+import org.elasticsearch.plugin.elasticfence.cache.RestCacheInvalidateAction;
+import org.elasticsearch.plugin.elasticfence.cache.SharedAuthCache;
+import org.elasticsearch.plugin.elasticfence.cache.TransportCacheInvalidateAction;
+import org.elasticsearch.plugin.elasticfence.cache.TransportCachePublishAction;
+import org.elasticsearch.plugin.elasticfence.limit.RateLimiter;
 import org.elasticsearch.plugin.elasticfence.provider.AuthProvider;
 import org.elasticsearch.plugin.elasticfence.provider.InMemoryAuthProvider;
 import org.elasticsearch.plugin.elasticfence.provider.LdapAuthProvider;
+import org.elasticsearch.plugin.elasticfence.route.AnonymousRoutes;
+import org.elasticsearch.plugin.elasticfence.session.SessionTokenService;
+import org.elasticsearch.plugin.elasticfence.stats.RestStatsAction;
+import org.elasticsearch.plugin.elasticfence.stats.StatsAction;
+import org.elasticsearch.plugin.elasticfence.stats.TransportStatsAction;
 import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 
 import static org.elasticsearch.plugin.elasticfence.Constants.*;
@@ -23,7 +60,39 @@ import static org.elasticsearch.plugin.elasticfence.Constants.*;
 public class ElasticfencePlugin extends Plugin implements ActionPlugin {
     private final static Logger LOG = LogManager.getLogger(ElasticfencePlugin.class);
 
+    // changed at runtime with the cluster settings api. elasticsearch.yml holds the values to start with
+    static final Setting<String> LDAP_HOST =
+            Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_HOST, Setting.Property.NodeScope, Setting.Property.Dynamic);
+    static final Setting<Integer> LDAP_PORT =
+            Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_PORT, 389, Setting.Property.NodeScope, Setting.Property.Dynamic);
+    static final Setting<Long> LDAP_TIMEOUT_MILLIS =
+            Setting.longSetting(SETTINGS_PREFIX + SETTINGS_LDAP_TIMEOUT_MILLIS, 30000, 1, Setting.Property.NodeScope, Setting.Property.Dynamic);
+    static final Setting<Integer> LDAP_PAGE_SIZE =
+            Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_PAGE_SIZE, Constants.LDAP_PAGE_SIZE, 1, Setting.Property.NodeScope, Setting.Property.Dynamic);
+    static final Setting<Boolean> LDAP_CACHE_ENABLED =
+            Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_ENABLED, Boolean.FALSE, Setting.Property.NodeScope, Setting.Property.Dynamic);
+    static final Setting<Integer> LDAP_CACHE_EXPIRE_SECONDS =
+            Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_EXPIRE_SECONDS, 3600, 0, Setting.Property.NodeScope, Setting.Property.Dynamic);
+    static final Setting<Integer> LDAP_CACHE_MAX_SIZE =
+            Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_MAX_SIZE, 10000, 0, Setting.Property.NodeScope, Setting.Property.Dynamic);
+    static final Setting<Integer> LDAP_CACHE_REFRESH_AHEAD_SECONDS =
+            Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_REFRESH_AHEAD_SECONDS, 0, 0, Setting.Property.NodeScope, Setting.Property.Dynamic);
+    static final Setting<Integer> LDAP_CACHE_STALE_SECONDS =
+            Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_STALE_SECONDS, 0, 0, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    // in (0, 1]. at 0 the breaker would open on any min_calls lookups, and above 1 never
+    static final Setting<Double> LDAP_BREAKER_ERROR_RATE =
+            new Setting<>(SETTINGS_PREFIX + SETTINGS_LDAP_BREAKER_ERROR_RATE, "0.5", value -> {
+                double rate = Double.parseDouble(value);
+                if (!(rate > 0.0 && rate <= 1.0)) {
+                    throw new IllegalArgumentException("Failed to parse value [" + value + "] for setting ["
+                            + SETTINGS_PREFIX + SETTINGS_LDAP_BREAKER_ERROR_RATE + "] must be > 0 and <= 1");
+                }
+                return rate;
+            }, Setting.Property.NodeScope);
+
     private final Settings settings;
+    private final SetOnce<ThreadPool> threadPool = new SetOnce<>();
 
     @Inject
     public ElasticfencePlugin(Settings settings) {
@@ -39,6 +108,13 @@ public class ElasticfencePlugin extends Plugin implements ActionPlugin {
             return null;
         }
 
+        if (pluginSettings.getAsInt(SETTINGS_LDAP_CACHE_SNAPSHOT_SECONDS, 0) > 0) {
+            Path dataPath = new Environment(settings).dataFiles()[0];
+            InMemoryAuthProvider.getInstance().setSnapshotFile(dataPath.resolve("elasticfence").resolve("auth_cache.snapshot"));
+        }
+
+        AuthAudit.getInstance().init(pluginSettings);
+
         List<AuthProvider> authProviders = ImmutableList.<AuthProvider>builder()
                 .add(InMemoryAuthProvider.getInstance())
                 .add(LdapAuthProvider.getInstance())
@@ -51,8 +127,85 @@ public class ElasticfencePlugin extends Plugin implements ActionPlugin {
             }
         }
 
+        int maxKeys = pluginSettings.getAsInt(SETTINGS_RATE_LIMIT_MAX_KEYS, 10000);
+        RateLimiter userLimiter = new RateLimiter("user",
+                pluginSettings.getAsDouble(SETTINGS_RATE_LIMIT_USER_PER_SECOND, 0.0),
+                pluginSettings.getAsInt(SETTINGS_RATE_LIMIT_USER_BURST, 100), maxKeys);
+        RateLimiter addressLimiter = new RateLimiter("address",
+                pluginSettings.getAsDouble(SETTINGS_RATE_LIMIT_ADDRESS_PER_SECOND, 0.0),
+                pluginSettings.getAsInt(SETTINGS_RATE_LIMIT_ADDRESS_BURST, 100), maxKeys);
+        SessionTokenService sessions = new SessionTokenService(pluginSettings);
+        AnonymousRoutes anonymousRoutes = new AnonymousRoutes(pluginSettings);
+
         LOG.info("elasticfence plugin is enabled");
-        return restHandler -> new AuthRestHandler(restHandler, authProviders);
+        // handlers are wrapped on registration, after createComponents
+        return restHandler -> new AuthRestHandler(restHandler, authProviders, threadPool.get(), userLimiter, addressLimiter, sessions, anonymousRoutes);
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry) {
+        this.threadPool.set(threadPool);
+        LdapAuthProvider.getInstance().setExecutor(threadPool.executor(AUTH_THREAD_POOL_NAME));
+
+        Settings pluginSettings = settings.getByPrefix(SETTINGS_PREFIX);
+        if (pluginSettings.getAsBoolean(SETTINGS_ENABLED, false)) {
+            addSettingsUpdateConsumers(clusterService.getClusterSettings());
+        }
+        if (pluginSettings.getAsBoolean(SETTINGS_ENABLED, false)
+                && pluginSettings.getAsBoolean(SETTINGS_LDAP_CACHE_ENABLED, false)
+                && pluginSettings.getAsBoolean(SETTINGS_LDAP_CACHE_SHARED, false)) {
+            InMemoryAuthProvider.getInstance().setSharedCache(new SharedAuthCache(client, clusterService));
+            LOG.info("auth cache is shared with the cluster");
+        }
+        return Collections.emptyList();
+    }
+
+    private void addSettingsUpdateConsumers(ClusterSettings clusterSettings) {
+        InMemoryAuthProvider inMemory = InMemoryAuthProvider.getInstance();
+        LdapAuthProvider ldap = LdapAuthProvider.getInstance();
+        clusterSettings.addSettingsUpdateConsumer(LDAP_HOST, value -> ldap.reconfigure(SETTINGS_LDAP_HOST, value));
+        clusterSettings.addSettingsUpdateConsumer(LDAP_PORT, value -> ldap.reconfigure(SETTINGS_LDAP_PORT, String.valueOf(value)));
+        clusterSettings.addSettingsUpdateConsumer(LDAP_TIMEOUT_MILLIS, value -> ldap.reconfigure(SETTINGS_LDAP_TIMEOUT_MILLIS, String.valueOf(value)));
+        clusterSettings.addSettingsUpdateConsumer(LDAP_PAGE_SIZE, ldap::setPageSize);
+        clusterSettings.addSettingsUpdateConsumer(LDAP_CACHE_ENABLED, ldap::setCacheEnabled);
+        clusterSettings.addSettingsUpdateConsumer(LDAP_CACHE_EXPIRE_SECONDS, inMemory::setExpireSeconds);
+        clusterSettings.addSettingsUpdateConsumer(LDAP_CACHE_MAX_SIZE, inMemory::setMaxSize);
+        clusterSettings.addSettingsUpdateConsumer(LDAP_CACHE_REFRESH_AHEAD_SECONDS, inMemory::setRefreshAheadSeconds);
+        clusterSettings.addSettingsUpdateConsumer(LDAP_CACHE_STALE_SECONDS, inMemory::setStaleSeconds);
+    }
+
+    @Override
+    public void close() {
+        // the freshest snapshot for the next start
+        InMemoryAuthProvider.getInstance().close();
+        AuthAudit.getInstance().close();
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(
+                new ActionHandler<>(StatsAction.INSTANCE, TransportStatsAction.class),
+                new ActionHandler<>(CachePublishAction.INSTANCE, TransportCachePublishAction.class),
+                new ActionHandler<>(CacheInvalidateAction.INSTANCE, TransportCacheInvalidateAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Arrays.asList(
+                new RestStatsAction(settings, restController),
+                new RestCacheInvalidateAction(settings, restController));
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        int size = EsExecutors.boundedNumberOfProcessors(settings) * 2;
+        return Collections.singletonList(
+                new FixedExecutorBuilder(settings, AUTH_THREAD_POOL_NAME, size, 1000, "thread_pool." + AUTH_THREAD_POOL_NAME));
     }
 
     @Override
@@ -62,18 +215,78 @@ public class ElasticfencePlugin extends Plugin implements ActionPlugin {
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_ROOT_USERNAME, Setting.Property.NodeScope),
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_ROOT_PASSWORD, Setting.Property.NodeScope),
                 Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_LDAP_ENABLED, Boolean.FALSE, Setting.Property.NodeScope),
-                Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_HOST, Setting.Property.NodeScope),
-                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_PORT, 389, Setting.Property.NodeScope),
+                LDAP_HOST,
+                LDAP_PORT,
                 Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_LDAP_SSL, Boolean.FALSE, Setting.Property.NodeScope),
+                new Setting<>(SETTINGS_PREFIX + SETTINGS_LDAP_STRATEGY, "round_robin", Function.identity(), Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_HEALTH_CHECK_SECONDS, 10, 0, Setting.Property.NodeScope),
+                LDAP_TIMEOUT_MILLIS,
+                LDAP_PAGE_SIZE,
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_PIPELINE_CONNECTIONS, 2, 1, Setting.Property.NodeScope),
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_BIND_DN, Setting.Property.NodeScope),
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_BIND_PASSWORD, Setting.Property.NodeScope),
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_USER_BASE, Setting.Property.NodeScope),
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_USER_FILTER, Setting.Property.NodeScope),
+                Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_LDAP_USER_INDEX_ENABLED, Boolean.FALSE, Setting.Property.NodeScope),
+                new Setting<>(SETTINGS_PREFIX + SETTINGS_LDAP_USER_INDEX_ATTRIBUTE, "", Function.identity(), Setting.Property.NodeScope),
+                new Setting<>(SETTINGS_PREFIX + SETTINGS_LDAP_USER_INDEX_TIMESTAMP_ATTRIBUTE, "modifyTimestamp", Function.identity(), Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_USER_INDEX_SYNC_SECONDS, 60, 1, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_USER_INDEX_RELOAD_SECONDS, 3600, 1, Setting.Property.NodeScope),
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_GROUP_BASE, Setting.Property.NodeScope),
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_GROUP_FILTER, Setting.Property.NodeScope),
                 Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_GROUP_CN, Setting.Property.NodeScope),
-                Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_ENABLED, Boolean.FALSE, Setting.Property.NodeScope),
-                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_EXPIRE_SECONDS, 3600, Setting.Property.NodeScope)
+                new Setting<>(SETTINGS_PREFIX + SETTINGS_LDAP_GROUP_MEMBER_ATTRIBUTE, "member", Function.identity(), Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_GROUP_REFRESH_SECONDS, 0, 0, Setting.Property.NodeScope),
+                Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_LDAP_GROUP_USE_MEMBER_OF, Boolean.FALSE, Setting.Property.NodeScope),
+                LDAP_CACHE_ENABLED,
+                LDAP_CACHE_EXPIRE_SECONDS,
+                LDAP_CACHE_MAX_SIZE,
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_SWEEP_SECONDS, 60, 1, Setting.Property.NodeScope),
+                LDAP_CACHE_REFRESH_AHEAD_SECONDS,
+                LDAP_CACHE_STALE_SECONDS,
+                Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_SHARED, Boolean.FALSE, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_SNAPSHOT_SECONDS, 0, 0, Setting.Property.NodeScope),
+                Setting.simpleString(SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_SNAPSHOT_KEY, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_NEGATIVE_CACHE_EXPIRE_SECONDS, 30, 0, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_NEGATIVE_CACHE_MAX_SIZE, 10000, 0, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_POOL_MIN_SIZE, 1, 0, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_POOL_MAX_SIZE, 8, 1, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_POOL_MAX_WAIT_MILLIS, 5000, 0, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_POOL_IDLE_SECONDS, 300, 1, Setting.Property.NodeScope),
+                Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_LDAP_BREAKER_ENABLED, Boolean.TRUE, Setting.Property.NodeScope),
+                LDAP_BREAKER_ERROR_RATE,
+                Setting.longSetting(SETTINGS_PREFIX + SETTINGS_LDAP_BREAKER_SLOW_MILLIS, 5000, 1, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_BREAKER_MIN_CALLS, 20, 1, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_BREAKER_WINDOW_SECONDS, 10, 1, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_BREAKER_OPEN_SECONDS, 30, 1, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_LDAP_BREAKER_HALF_OPEN_CALLS, 3, 1, Setting.Property.NodeScope),
+                Setting.doubleSetting(SETTINGS_PREFIX + SETTINGS_RATE_LIMIT_USER_PER_SECOND, 0.0, 0.0, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_RATE_LIMIT_USER_BURST, 100, 1, Setting.Property.NodeScope),
+                Setting.doubleSetting(SETTINGS_PREFIX + SETTINGS_RATE_LIMIT_ADDRESS_PER_SECOND, 0.0, 0.0, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_RATE_LIMIT_ADDRESS_BURST, 100, 1, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_RATE_LIMIT_MAX_KEYS, 10000, 1, Setting.Property.NodeScope),
+                Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_SESSION_ENABLED, Boolean.FALSE, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_SESSION_TTL_SECONDS, 300, 1, Setting.Property.NodeScope),
+                Setting.simpleString(SETTINGS_PREFIX + SETTINGS_SESSION_KEY, Setting.Property.NodeScope),
+                Setting.boolSetting(SETTINGS_PREFIX + SETTINGS_AUDIT_ENABLED, Boolean.TRUE, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_AUDIT_BUFFER_SIZE, 65536, 2, Setting.Property.NodeScope),
+                Setting.longSetting(SETTINGS_PREFIX + SETTINGS_AUDIT_FLUSH_MILLIS, 1000, 1, Setting.Property.NodeScope),
+                Setting.intSetting(SETTINGS_PREFIX + SETTINGS_AUDIT_SUMMARY_SECONDS, 60, 1, Setting.Property.NodeScope),
+                Setting.doubleSetting(SETTINGS_PREFIX + SETTINGS_AUDIT_SUCCESS_SAMPLE_RATE, 0.01, 0.0, Setting.Property.NodeScope),
+                Setting.listSetting(SETTINGS_PREFIX + SETTINGS_ANONYMOUS_ROUTES, Collections.emptyList(), Function.identity(), Setting.Property.NodeScope),
+                Setting.listSetting(SETTINGS_PREFIX + SETTINGS_ANONYMOUS_SOURCES, Collections.emptyList(), Function.identity(), Setting.Property.NodeScope)
         );
     }
+
+    /**
+     * secrets are not shown by the nodes info and settings APIs.
+     */
+    @Override
+    public List<String> getSettingsFilter() {
+        return Arrays.asList(
+                SETTINGS_PREFIX + SETTINGS_ROOT_PASSWORD,
+                SETTINGS_PREFIX + SETTINGS_LDAP_BIND_PASSWORD,
+                SETTINGS_PREFIX + SETTINGS_LDAP_CACHE_SNAPSHOT_KEY,
+                SETTINGS_PREFIX + SETTINGS_SESSION_KEY);
+    }
 }
@@ -0,0 +1,267 @@
+package org.elasticsearch.plugin.elasticfence.audit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.elasticsearch.plugin.elasticfence.Constants.*;
+
+/**
+ * audit trail of logins, written off the request path.
+ * <p>
+ * request threads only put an event into a ring buffer. a writer thread drains it in batches:
+ * failures are written one by one, successes are counted per user and written as one summary per user
+ * and interval, and a sample of them one by one. events are dropped, and counted, when the buffer is full.
+ */
+public class AuthAudit {
+    private final static Logger LOG = LogManager.getLogger(AuthAudit.class);
+    // a logger of its own, for a separate appender
+    private final static Logger AUDIT = LogManager.getLogger("plugin.elasticfence.audit");
+
+    // null if disabled
+    private volatile Writer writer;
+    private final LongAdder dropped = new LongAdder();
+
+    private static class HOLDER {
+        private static final AuthAudit INSTANCE = new AuthAudit();
+    }
+
+    public static AuthAudit getInstance() {
+        return HOLDER.INSTANCE;
+    }
+
+    private AuthAudit() {
+    }
+
+    public synchronized void init(Settings settings) {
+        close();
+        if (!settings.getAsBoolean(SETTINGS_AUDIT_ENABLED, true)) {
+            LOG.info("auth audit disabled");
+            return;
+        }
+        Writer writer = new Writer(
+                new Ring(settings.getAsInt(SETTINGS_AUDIT_BUFFER_SIZE, 65536)),
+                TimeUnit.MILLISECONDS.toNanos(settings.getAsLong(SETTINGS_AUDIT_FLUSH_MILLIS, 1000L)),
+                TimeUnit.SECONDS.toNanos(settings.getAsInt(SETTINGS_AUDIT_SUMMARY_SECONDS, 60)),
+                settings.getAsDouble(SETTINGS_AUDIT_SUCCESS_SAMPLE_RATE, 0.01));
+        AuthStats.getInstance().gauge("audit.dropped", dropped::sum);
+
+        writer.thread.start();
+        this.writer = writer;
+        LOG.info("auth audit ready - BUFFER:{} SUMMARY_SECONDS:{} SAMPLE_RATE:{}",
+                writer.ring.capacity(), TimeUnit.NANOSECONDS.toSeconds(writer.summaryNanos), writer.sampleRate);
+    }
+
+    /**
+     * @param via the provider that accepted the user, or "session"
+     */
+    public void success(String username, String via, SocketAddress remoteAddress) {
+        offer(new Event(true, username, via, remoteAddress, null));
+    }
+
+    /**
+     * @param reason short fixed name, e.g. "unauthorized"
+     * @param detail optional, e.g. the error message of the server
+     */
+    public void failure(String reason, String username, SocketAddress remoteAddress, String detail) {
+        offer(new Event(false, username, reason, remoteAddress, detail));
+    }
+
+    private void offer(Event event) {
+        Writer writer = this.writer;
+        if (writer != null && !writer.ring.offer(event)) {
+            dropped.increment();
+        }
+    }
+
+    private static String address(SocketAddress remoteAddress) {
+        if (remoteAddress instanceof InetSocketAddress && ((InetSocketAddress) remoteAddress).getAddress() != null) {
+            return ((InetSocketAddress) remoteAddress).getAddress().getHostAddress();
+        }
+        return String.valueOf(remoteAddress);
+    }
+
+    /**
+     * stops the writer after writing what is buffered, with the summaries so far.
+     * a writer still busy after the wait finishes alone, as the next one drains a ring of its own.
+     */
+    public synchronized void close() {
+        Writer writer = this.writer;
+        if (writer == null) {
+            return;
+        }
+        this.writer = null;
+        writer.stop();
+        try {
+            writer.thread.join(TimeUnit.NANOSECONDS.toMillis(writer.flushNanos) + 5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.thread.isAlive()) {
+            LOG.warn("auth audit writer still busy after close ! - it finishes its own buffer alone");
+        }
+    }
+
+    /**
+     * the writer thread with the ring it alone drains. replaced as a whole on init.
+     */
+    private static class Writer implements Runnable {
+        private final Ring ring;
+        private final long flushNanos;
+        private final long summaryNanos;
+        private final double sampleRate;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Writer(Ring ring, long flushNanos, long summaryNanos, double sampleRate) {
+            this.ring = ring;
+            this.flushNanos = flushNanos;
+            this.summaryNanos = summaryNanos;
+            this.sampleRate = sampleRate;
+            this.thread = EsExecutors.daemonThreadFactory("elasticfence_audit").newThread(this);
+        }
+
+        void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            // successes of the current interval. only this thread touches it
+            Map<String, int[]> successes = new HashMap<>();
+            long summaryStart = System.nanoTime();
+            while (true) {
+                boolean last = !running;
+                try {
+                    drain(successes);
+                    if (last || System.nanoTime() - summaryStart >= summaryNanos) {
+                        summarize(successes, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - summaryStart));
+                        summaryStart = System.nanoTime();
+                    }
+                } catch (Exception e) {
+                    LOG.error("auth audit write error !", e);
+                }
+                if (last) {
+                    return;
+                }
+                LockSupport.parkNanos(flushNanos);
+            }
+        }
+
+        private void drain(Map<String, int[]> successes) {
+            Event event;
+            while ((event = ring.poll()) != null) {
+                if (event.success) {
+                    successes.computeIfAbsent(String.valueOf(event.username), key -> new int[1])[0]++;
+                    if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+                        AUDIT.info("auth success - USER:{} VIA:{} REMOTE:{} TIME:{}",
+                                event.username, event.kind, address(event.remoteAddress), event.timeMillis);
+                    }
+                } else {
+                    AUDIT.info("auth fail ! - REASON:{} USER:{} REMOTE:{} TIME:{}{}",
+                            event.kind, event.username, address(event.remoteAddress), event.timeMillis,
+                            event.detail == null ? "" : " MSG:" + event.detail);
+                }
+            }
+        }
+
+        private void summarize(Map<String, int[]> successes, long seconds) {
+            successes.forEach((username, count) ->
+                    AUDIT.info("auth success summary - USER:{} COUNT:{} SECONDS:{}", username, count[0], seconds));
+            successes.clear();
+        }
+    }
+
+    private static class Event {
+        final boolean success;
+        final String username;
+        // provider of a success, reason of a failure
+        final String kind;
+        final SocketAddress remoteAddress;
+        final String detail;
+        final long timeMillis = System.currentTimeMillis();
+
+        Event(boolean success, String username, String kind, SocketAddress remoteAddress, String detail) {
+            this.success = success;
+            this.username = username;
+            this.kind = kind;
+            this.remoteAddress = remoteAddress;
+            this.detail = detail;
+        }
+    }
+
+    /**
+     * bounded queue of many producers and one consumer, without locks.
+     * each slot has a sequence number telling whether it is free for the producer of a position, or filled for the consumer.
+     */
+    private static class Ring {
+        private final AtomicReferenceArray<Event> slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        // consumer position. the writer thread only
+        private long head;
+
+        Ring(int size) {
+            int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        boolean offer(Event event) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long gap = sequences.get(index) - position;
+                if (gap == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots.lazySet(index, event);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (gap < 0) {
+                    // the consumer has not freed this slot yet
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        Event poll() {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            Event event = slots.get(index);
+            slots.lazySet(index, null);
+            sequences.set(index, head + capacity());
+            head++;
+            return event;
+        }
+    }
+}
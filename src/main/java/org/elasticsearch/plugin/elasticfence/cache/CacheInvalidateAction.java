@@ -0,0 +1,34 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * evicts users from the auth cache of every node.
+ */
+public class CacheInvalidateAction extends Action<CacheInvalidateRequest, CacheInvalidateResponse, CacheInvalidateAction.RequestBuilder> {
+    public static final CacheInvalidateAction INSTANCE = new CacheInvalidateAction();
+    public static final String NAME = "cluster:admin/elasticfence/cache/invalidate";
+
+    private CacheInvalidateAction() {
+        super(NAME);
+    }
+
+    @Override
+    public CacheInvalidateResponse newResponse() {
+        return new CacheInvalidateResponse();
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client, this);
+    }
+
+    public static class RequestBuilder extends NodesOperationRequestBuilder<CacheInvalidateRequest, CacheInvalidateResponse, RequestBuilder> {
+
+        RequestBuilder(ElasticsearchClient client, CacheInvalidateAction action) {
+            super(client, action, new CacheInvalidateRequest());
+        }
+    }
+}
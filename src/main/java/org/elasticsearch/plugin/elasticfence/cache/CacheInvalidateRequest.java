@@ -0,0 +1,66 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+public class CacheInvalidateRequest extends BaseNodesRequest<CacheInvalidateRequest> {
+    // empty for all users
+    private String[] usernames = Strings.EMPTY_ARRAY;
+
+    public CacheInvalidateRequest() {
+    }
+
+    public CacheInvalidateRequest(String[] usernames, String... nodesIds) {
+        super(nodesIds);
+        this.usernames = usernames;
+    }
+
+    public String[] getUsernames() {
+        return usernames;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        usernames = in.readStringArray();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStringArray(usernames);
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+        private String[] usernames;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, CacheInvalidateRequest request) {
+            super(nodeId);
+            this.usernames = request.getUsernames();
+        }
+
+        public String[] getUsernames() {
+            return usernames;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            usernames = in.readStringArray();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeStringArray(usernames);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * copies a login verified on one node into the auth cache of the others.
+ */
+public class CachePublishAction extends Action<CachePublishRequest, CachePublishResponse, CachePublishAction.RequestBuilder> {
+    public static final CachePublishAction INSTANCE = new CachePublishAction();
+    public static final String NAME = "cluster:admin/elasticfence/cache/publish";
+
+    private CachePublishAction() {
+        super(NAME);
+    }
+
+    @Override
+    public CachePublishResponse newResponse() {
+        return new CachePublishResponse();
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client, this);
+    }
+
+    public static class RequestBuilder extends NodesOperationRequestBuilder<CachePublishRequest, CachePublishResponse, RequestBuilder> {
+
+        RequestBuilder(ElasticsearchClient client, CachePublishAction action) {
+            super(client, action, new CachePublishRequest());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.plugin.elasticfence.provider.Credentials;
+
+import java.io.IOException;
+
+public class CachePublishRequest extends BaseNodesRequest<CachePublishRequest> {
+    private Credentials credentials;
+
+    public CachePublishRequest() {
+    }
+
+    public CachePublishRequest(Credentials credentials, String... nodesIds) {
+        super(nodesIds);
+        this.credentials = credentials;
+    }
+
+    public Credentials getCredentials() {
+        return credentials;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        credentials = readCredentials(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        writeCredentials(out, credentials);
+    }
+
+    /**
+     * only the salted verifier goes over the wire
+     */
+    private static Credentials readCredentials(StreamInput in) throws IOException {
+        return Credentials.restore(in.readString(), in.readByteArray(), in.readByteArray(), in.readLong());
+    }
+
+    private static void writeCredentials(StreamOutput out, Credentials credentials) throws IOException {
+        out.writeString(credentials.getUsername());
+        out.writeByteArray(credentials.getSalt());
+        out.writeByteArray(credentials.getVerifier());
+        out.writeLong(credentials.getCreated());
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+        private Credentials credentials;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, CachePublishRequest request) {
+            super(nodeId);
+            this.credentials = request.getCredentials();
+        }
+
+        public Credentials getCredentials() {
+            return credentials;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            credentials = readCredentials(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            writeCredentials(out, credentials);
+        }
+    }
+}
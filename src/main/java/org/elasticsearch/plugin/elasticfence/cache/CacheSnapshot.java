@@ -0,0 +1,158 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import com.google.common.base.Charsets;
+import org.elasticsearch.plugin.elasticfence.provider.Credentials;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * encrypted file of cached logins, so that a restarted node starts with a warm cache.
+ * <p>
+ * layout: magic, version, key salt, iv, then AES-GCM of [count, (username, salt, verifier, created)*].
+ * the header is authenticated with the records. the key is derived from a configured secret, so a node
+ * with another secret, or a tampered file, reads nothing.
+ */
+public class CacheSnapshot {
+    private static final int MAGIC = 0x45464353; // EFCS
+    private static final int VERSION = 1;
+    private static final int KEY_SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 12;
+    private static final int HEADER_LENGTH = 4 + 4 + KEY_SALT_LENGTH + IV_LENGTH;
+    private static final int TAG_BITS = 128;
+    private static final int KEY_ITERATIONS = 10000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path file;
+    private final char[] secret;
+
+    public CacheSnapshot(Path file, String secret) {
+        this.file = file;
+        this.secret = secret.toCharArray();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * replace the snapshot at once. a crash while writing leaves the previous one.
+     */
+    public void write(Collection<Credentials> credentials) throws IOException, GeneralSecurityException {
+        int size = 4;
+        for (Credentials entry : credentials) {
+            size += 2 + entry.getUsername().getBytes(Charsets.UTF_8).length
+                    + 1 + entry.getSalt().length
+                    + 1 + entry.getVerifier().length
+                    + 8;
+        }
+        ByteBuffer plain = ByteBuffer.allocate(size);
+        plain.putInt(credentials.size());
+        for (Credentials entry : credentials) {
+            byte[] username = entry.getUsername().getBytes(Charsets.UTF_8);
+            plain.putShort((short) username.length).put(username);
+            plain.put((byte) entry.getSalt().length).put(entry.getSalt());
+            plain.put((byte) entry.getVerifier().length).put(entry.getVerifier());
+            plain.putLong(entry.getCreated());
+        }
+        plain.flip();
+
+        byte[] keySalt = new byte[KEY_SALT_LENGTH];
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(keySalt);
+        RANDOM.nextBytes(iv);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).put(keySalt).put(iv);
+        header.flip();
+
+        Cipher cipher = cipher(Cipher.ENCRYPT_MODE, keySalt, iv);
+        cipher.updateAAD(header.duplicate());
+        ByteBuffer encrypted = ByteBuffer.allocate(cipher.getOutputSize(plain.remaining()));
+        cipher.doFinal(plain, encrypted);
+        encrypted.flip();
+
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (encrypted.hasRemaining()) {
+                channel.write(encrypted);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return empty if there is no snapshot yet
+     * @throws GeneralSecurityException if written with another secret, or modified
+     */
+    public List<Credentials> read() throws IOException, GeneralSecurityException {
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH) {
+                throw new IOException("truncated cache snapshot - FILE:" + file);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer header = mapped.duplicate();
+            header.limit(HEADER_LENGTH);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("unknown cache snapshot format - FILE:" + file);
+            }
+            byte[] keySalt = new byte[KEY_SALT_LENGTH];
+            byte[] iv = new byte[IV_LENGTH];
+            header.get(keySalt).get(iv);
+            header.rewind();
+
+            Cipher cipher = cipher(Cipher.DECRYPT_MODE, keySalt, iv);
+            cipher.updateAAD(header);
+            mapped.position(HEADER_LENGTH);
+            ByteBuffer plain = ByteBuffer.allocate(cipher.getOutputSize(mapped.remaining()));
+            cipher.doFinal(mapped, plain);
+            plain.flip();
+
+            int count = plain.getInt();
+            List<Credentials> credentials = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] username = new byte[plain.getShort() & 0xffff];
+                plain.get(username);
+                byte[] salt = new byte[plain.get() & 0xff];
+                plain.get(salt);
+                byte[] verifier = new byte[plain.get() & 0xff];
+                plain.get(verifier);
+                credentials.add(Credentials.restore(new String(username, Charsets.UTF_8), salt, verifier, plain.getLong()));
+            }
+            return credentials;
+        }
+    }
+
+    private Cipher cipher(int mode, byte[] keySalt, byte[] iv) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] key = factory.generateSecret(new PBEKeySpec(secret, keySalt, KEY_ITERATIONS, 256)).getEncoded();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_BITS, iv));
+        return cipher;
+    }
+}
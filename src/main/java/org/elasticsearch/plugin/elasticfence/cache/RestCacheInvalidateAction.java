@@ -0,0 +1,30 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+/**
+ * DELETE /_elasticfence/cache and DELETE /_elasticfence/cache/{username}
+ */
+public class RestCacheInvalidateAction extends BaseRestHandler {
+
+    public RestCacheInvalidateAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.DELETE, "/_elasticfence/cache", this);
+        controller.registerHandler(RestRequest.Method.DELETE, "/_elasticfence/cache/{username}", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        CacheInvalidateRequest invalidateRequest = new CacheInvalidateRequest(Strings.splitStringByCommaToArray(request.param("username")));
+        if (request.hasParam("timeout")) {
+            invalidateRequest.timeout(request.param("timeout"));
+        }
+        return channel -> client.execute(CacheInvalidateAction.INSTANCE, invalidateRequest, new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,63 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.plugin.elasticfence.provider.Credentials;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * shares the auth cache of this node with the rest of the cluster. fire and forget, a lost message only costs an ldap lookup.
+ */
+public class SharedAuthCache {
+    private final static Logger LOG = LogManager.getLogger(SharedAuthCache.class);
+
+    private final Client client;
+    private final ClusterService clusterService;
+
+    public SharedAuthCache(Client client, ClusterService clusterService) {
+        this.client = client;
+        this.clusterService = clusterService;
+    }
+
+    /**
+     * copy a login verified here to the other nodes.
+     */
+    public void publish(Credentials credentials) {
+        String localNodeId = clusterService.localNode().getId();
+        List<String> nodeIds = new ArrayList<>();
+        for (DiscoveryNode node : clusterService.state().nodes()) {
+            if (!node.getId().equals(localNodeId)) {
+                nodeIds.add(node.getId());
+            }
+        }
+        if (nodeIds.isEmpty()) {
+            return;
+        }
+
+        AuthStats.getInstance().increment("cache.shared.published");
+        client.execute(CachePublishAction.INSTANCE, new CachePublishRequest(credentials, nodeIds.toArray(new String[0])), ActionListener.wrap(
+                response -> {
+                    if (response.hasFailures()) {
+                        LOG.warn("cached user publish fail on some nodes - USER:{} FAILED:{}", credentials.getUsername(), response.failures().size());
+                    }
+                },
+                e -> LOG.warn("cached user publish fail ! - USER:{} MSG:{}", credentials.getUsername(), e.getMessage())));
+    }
+
+    /**
+     * evict a user on every node, this one included.
+     */
+    public void invalidate(String username) {
+        AuthStats.getInstance().increment("cache.shared.invalidated");
+        client.execute(CacheInvalidateAction.INSTANCE, new CacheInvalidateRequest(new String[]{username}), ActionListener.wrap(
+                response -> LOG.debug("cached user invalidated on cluster - USER:{}", username),
+                e -> LOG.warn("cached user invalidate fail ! - USER:{} MSG:{}", username, e.getMessage())));
+    }
+}
@@ -0,0 +1,48 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.elasticfence.provider.InMemoryAuthProvider;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class TransportCacheInvalidateAction extends TransportNodesAction<CacheInvalidateRequest, CacheInvalidateResponse,
+        CacheInvalidateRequest.NodeRequest, CacheInvalidateResponse.NodeResponse> {
+
+    @Inject
+    public TransportCacheInvalidateAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                          ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings, CacheInvalidateAction.NAME, threadPool, clusterService, transportService, actionFilters, indexNameExpressionResolver,
+                CacheInvalidateRequest::new, CacheInvalidateRequest.NodeRequest::new, ThreadPool.Names.MANAGEMENT, CacheInvalidateResponse.NodeResponse.class);
+    }
+
+    @Override
+    protected CacheInvalidateResponse newResponse(CacheInvalidateRequest request, List<CacheInvalidateResponse.NodeResponse> responses,
+                                                  List<FailedNodeException> failures) {
+        return new CacheInvalidateResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected CacheInvalidateRequest.NodeRequest newNodeRequest(String nodeId, CacheInvalidateRequest request) {
+        return new CacheInvalidateRequest.NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected CacheInvalidateResponse.NodeResponse newNodeResponse() {
+        return new CacheInvalidateResponse.NodeResponse();
+    }
+
+    @Override
+    protected CacheInvalidateResponse.NodeResponse nodeOperation(CacheInvalidateRequest.NodeRequest request) {
+        long invalidated = InMemoryAuthProvider.getInstance().evict(Arrays.asList(request.getUsernames()));
+        return new CacheInvalidateResponse.NodeResponse(clusterService.localNode(), invalidated);
+    }
+}
@@ -0,0 +1,47 @@
+package org.elasticsearch.plugin.elasticfence.cache;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.elasticfence.provider.InMemoryAuthProvider;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+public class TransportCachePublishAction extends TransportNodesAction<CachePublishRequest, CachePublishResponse,
+        CachePublishRequest.NodeRequest, CachePublishResponse.NodeResponse> {
+
+    @Inject
+    public TransportCachePublishAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                       ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings, CachePublishAction.NAME, threadPool, clusterService, transportService, actionFilters, indexNameExpressionResolver,
+                CachePublishRequest::new, CachePublishRequest.NodeRequest::new, ThreadPool.Names.MANAGEMENT, CachePublishResponse.NodeResponse.class);
+    }
+
+    @Override
+    protected CachePublishResponse newResponse(CachePublishRequest request, List<CachePublishResponse.NodeResponse> responses,
+                                               List<FailedNodeException> failures) {
+        return new CachePublishResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected CachePublishRequest.NodeRequest newNodeRequest(String nodeId, CachePublishRequest request) {
+        return new CachePublishRequest.NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected CachePublishResponse.NodeResponse newNodeResponse() {
+        return new CachePublishResponse.NodeResponse();
+    }
+
+    @Override
+    protected CachePublishResponse.NodeResponse nodeOperation(CachePublishRequest.NodeRequest request) {
+        InMemoryAuthProvider.getInstance().addShared(request.getCredentials());
+        return new CachePublishResponse.NodeResponse(clusterService.localNode());
+    }
+}
@@ -2,32 +2,41 @@ package org.elasticsearch.plugin.elasticfence.ldap;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.directory.api.ldap.codec.controls.search.pagedSearch.PagedResultsDecorator;
-import org.apache.directory.api.ldap.model.cursor.CursorLdapReferralException;
-import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.filter.FilterEncoder;
 import org.apache.directory.api.ldap.model.message.*;
-import org.apache.directory.api.ldap.model.message.controls.PagedResults;
 import org.apache.directory.api.ldap.model.name.Dn;
-import org.apache.directory.api.util.Strings;
-import org.apache.directory.ldap.client.api.EntryCursorImpl;
 import org.apache.directory.ldap.client.api.LdapConnection;
-import org.apache.directory.ldap.client.api.LdapConnectionConfig;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.plugin.elasticfence.audit.AuthAudit;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.elasticsearch.plugin.elasticfence.Constants.*;
 
 public class LdapAuthService {
     private final static Logger LOG = LogManager.getLogger(LdapAuthService.class);
+    private final static String MEMBER_OF = "memberOf";
+    // attribute option of ranged values, e.g. member;range=0-1499
+    private final static String RANGE_OPTION = ";range=";
 
     private final LdapDataSource ldapDataSource;
     private final Dn userBase;
@@ -35,6 +44,17 @@ public class LdapAuthService {
     private final Dn groupBase;
     private final String groupFilter;
     private final Set<String> groupCNs;
+    private final String groupMemberAttribute;
+    private final boolean groupFromMemberOf;
+    // (|(cn=A)(cn=B)..) of groupCNs
+    private final String groupCnFilter;
+    private final ScheduledExecutorService groupRefresher;
+    // null if not enabled
+    private final LdapUserIndex userIndex;
+    // normalized member DNs of groupCNs. null until the first refresh
+    private volatile Set<String> groupMembers;
+    // lookups running on this service, plus one until it is retired. closed at 0
+    private final AtomicInteger references = new AtomicInteger(1);
 
     public LdapAuthService(Settings settings) throws LdapInvalidDnException {
         this.ldapDataSource = new LdapDataSource(settings,
@@ -47,130 +67,346 @@ public class LdapAuthService {
         this.groupCNs = Arrays.stream(StringUtils.split(settings.get(SETTINGS_LDAP_GROUP_CN, ",")))
                 .map(String::toUpperCase)
                 .collect(Collectors.toSet());
+        this.groupMemberAttribute = settings.get(SETTINGS_LDAP_GROUP_MEMBER_ATTRIBUTE, "member");
+        this.groupFromMemberOf = settings.getAsBoolean(SETTINGS_LDAP_GROUP_USE_MEMBER_OF, false);
+        StringBuilder cnFilter = new StringBuilder("(|");
+        for (String cn : groupCNs) {
+            cnFilter.append("(cn=").append(FilterEncoder.encodeFilterValue(cn)).append(')');
+        }
+        this.groupCnFilter = cnFilter.append(')').toString();
+
+        // the user entry itself is needed for memberOf
+        if (settings.getAsBoolean(SETTINGS_LDAP_USER_INDEX_ENABLED, false) && !groupFromMemberOf) {
+            this.userIndex = new LdapUserIndex(settings, ldapDataSource, userBase, userFilter);
+        } else {
+            this.userIndex = null;
+        }
+
+        int refreshSeconds = settings.getAsInt(SETTINGS_LDAP_GROUP_REFRESH_SECONDS, 0);
+        if (refreshSeconds > 0 && !groupFromMemberOf && CollectionUtils.isNotEmpty(groupCNs)) {
+            this.groupRefresher = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("elasticfence_group_refresher"));
+            this.groupRefresher.scheduleWithFixedDelay(this::refreshGroupMembers, 0, refreshSeconds, TimeUnit.SECONDS);
+        } else {
+            this.groupRefresher = null;
+        }
+    }
+
+    public void setPageSize(int pageSize) {
+        ldapDataSource.setPageSize(pageSize);
+    }
+
+    public void warmUp() {
+        ldapDataSource.warmUp();
+    }
+
+    /**
+     * report this service in the stats, in place of the one it replaces.
+     */
+    public void registerGauges() {
+        ldapDataSource.registerGauges();
+        if (userIndex != null) {
+            userIndex.registerGauges();
+        }
+    }
+
+    /**
+     * @return true if any ldap server answers
+     */
+    public boolean probe() {
+        return ldapDataSource.probe();
+    }
+
+    /**
+     * take a reference for a lookup, to be given back with {@link #release()}.
+     *
+     * @return false if the service is closed. the current one must be used then
+     */
+    public boolean acquire() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            close();
+        }
+    }
+
+    /**
+     * no new lookups. closes once the running ones are done, however long they take.
+     */
+    public void retire() {
+        release();
+    }
+
+    private void close() {
+        if (groupRefresher != null) {
+            groupRefresher.shutdownNow();
+        }
+        if (userIndex != null) {
+            userIndex.close();
+        }
+        ldapDataSource.close();
     }
 
-    public List<Entry> lookup(String username, String password) throws Exception {
+    /**
+     * @return the user entry if the password is right and the user is in the groups. empty if ldap rejects the user
+     * @throws LdapException if ldap could not answer, e.g. a connect timeout. nothing is known about the user then
+     */
+    public List<Entry> lookup(String username, String password) throws LdapException {
+        String indexedDn = userIndex == null ? null : userIndex.dnOf(username);
+        if (indexedDn != null) {
+            Entry entry = new DefaultEntry(indexedDn);
+            return authenticate(entry, password) ? Collections.singletonList(entry) : Collections.emptyList();
+        }
+
         SearchRequest searchRequest = new SearchRequestImpl();
         searchRequest.setBase(userBase);
         searchRequest.setFilter(StringUtils.replace(userFilter, "{USERNAME}", username));
         searchRequest.setScope(SearchScope.SUBTREE);
+        // only the DN is used, and anything but exactly one user is rejected
+        searchRequest.setSizeLimit(2);
+        if (groupFromMemberOf) {
+            searchRequest.addAttributes(MEMBER_OF);
+        } else {
+            searchRequest.addAttributes(SchemaConstants.NO_ATTRIBUTE);
+        }
 
-        List<Entry> users = search(searchRequest);
-        LOG.info("search user - USERNAME:{} RESULTS:{}", username, CollectionUtils.size(users));
+        List<Entry> users;
+        long start = System.nanoTime();
+        boolean success = false;
+        try (LdapPendingSearch search = ldapDataSource.searchAsync(searchRequest)) {
+            users = search.get();
+            success = true;
+        } finally {
+            AuthStats.getInstance().record("ldap.user_search", start, success);
+        }
+        LOG.debug("search user - USERNAME:{} RESULTS:{}", username, CollectionUtils.size(users));
 
-        return users
-                .stream()
-                .filter(entry -> authenticate(entry.getDn().toString(), password))
-                .filter(this::isMemberOf)
-                .collect(Collectors.toList());
+        List<Entry> authenticated = new ArrayList<>(1);
+        for (Entry entry : users) {
+            if (authenticate(entry, password)) {
+                authenticated.add(entry);
+            }
+        }
+        return authenticated;
     }
 
-    private boolean authenticate(String bindDn, String bindPassword) {
-        LdapConnectionConfig config = ldapDataSource.getConfig();
-        config.setName(bindDn);
-        config.setCredentials(bindPassword);
+    private boolean authenticate(Entry entry, String password) throws LdapException {
+        // groups only after the password is right, so that a wrong password costs ldap a bind only
+        if (!authenticate(entry.getDn().toString(), password)) {
+            return false;
+        }
+        try (LdapPendingSearch groupSearch = startGroupSearch(entry)) {
+            return isMemberOf(entry, groupSearch);
+        }
+    }
 
-        LdapDataSource ldapDataSource = new LdapDataSource(config);
+    /**
+     * @return false if the password is wrong
+     */
+    private boolean authenticate(String bindDn, String bindPassword) throws LdapException {
+        LdapConnection connection = null;
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            ldapDataSource.connection();
-            LOG.info("user bind success - DN:{}", bindDn);
+            connection = ldapDataSource.bindConnection();
+            connection.bind(bindDn, bindPassword);
+            LOG.debug("user bind success - DN:{}", bindDn);
+            ldapDataSource.report(connection, null);
+            success = true;
             return true;
-        } catch (Exception e) {
-            LOG.info("user bind fail ! - DN:{} MSG:{}", bindDn, e.getMessage());
+        } catch (LdapAuthenticationException e) {
+            // wrong password. the server is fine
+            AuthAudit.getInstance().failure("ldap_bind", bindDn, null, e.getMessage());
+            ldapDataSource.report(connection, null);
             return false;
+        } catch (Exception e) {
+            // no answer about the password. not a rejection
+            AuthAudit.getInstance().failure("ldap_error", bindDn, null, e.getMessage());
+            ldapDataSource.report(connection, e);
+            throw e instanceof LdapException ? (LdapException) e : new LdapException("user bind fail ! - DN:" + bindDn, e);
         } finally {
-            ldapDataSource.disconnect();
+            ldapDataSource.releaseBindConnection(connection);
+            AuthStats.getInstance().record("ldap.user_bind", start, success);
+        }
+    }
+
+    /**
+     * @return null if membership is answered without a search
+     */
+    private LdapPendingSearch startGroupSearch(Entry entry) throws LdapException {
+        if (CollectionUtils.isEmpty(groupCNs) || groupFromMemberOf || groupMembers != null) {
+            return null;
+        }
+        // only the configured groups, and only whether there is one. the server stops at the first match
+        SearchRequest searchRequest = new SearchRequestImpl();
+        searchRequest.setBase(groupBase);
+        searchRequest.setFilter("(&" + StringUtils.replace(groupFilter, "{MEMBER_DN}", entry.getDn().toString()) + groupCnFilter + ")");
+        searchRequest.addAttributes(SchemaConstants.NO_ATTRIBUTE);
+        searchRequest.setScope(SearchScope.SUBTREE);
+        searchRequest.setSizeLimit(1);
+        try {
+            return ldapDataSource.searchAsync(searchRequest);
+        } catch (LdapException e) {
+            LOG.error("group search fail ! - MEMBER:{}", entry.getDn().toString(), e);
+            throw e;
         }
     }
 
-    private boolean isMemberOf(Entry entry) {
+    private boolean isMemberOf(Entry entry, LdapPendingSearch groupSearch) throws LdapException {
         if (CollectionUtils.isEmpty(groupCNs)) {
             return true;
         }
 
-        try {
-            SearchRequest searchRequest = new SearchRequestImpl();
-            searchRequest.setBase(groupBase);
-            searchRequest.setFilter(StringUtils.replace(groupFilter, "{MEMBER_DN}", entry.getDn().toString()));
-            searchRequest.addAttributes("cn");
-            searchRequest.setScope(SearchScope.SUBTREE);
+        if (groupFromMemberOf) {
+            return isMemberOfByAttribute(entry);
+        }
 
-            List<Entry> groups = search(searchRequest);
-            LOG.info("search group of user - MEMBER:{} RESULTS:{}", entry.getDn().toString(), CollectionUtils.size(groups));
-
-            return groups
-                    .stream()
-                    .anyMatch(group -> {
-                        try {
-                            String cn = group.get("cn").getString();
-                            return groupCNs.contains(cn.toUpperCase());
-                        } catch (Exception e) {
-                            LOG.error("group cn extract fail ! - DN:{}", entry.getDn(), e);
-                            return false;
-                        }
-                    });
-        } catch (Exception e) {
-            LOG.error("group search fail ! - MEMBER:{}", entry.getDn().toString(), e);
+        Set<String> members = groupMembers;
+        if (members != null) {
+            return members.contains(normalize(entry.getDn().getName()));
+        }
+
+        if (groupSearch == null) {
             return false;
         }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean matched = !groupSearch.get().isEmpty();
+            LOG.debug("search group of user - MEMBER:{} MATCHED:{}", entry.getDn().toString(), matched);
+            success = true;
+            return matched;
+        } catch (LdapException e) {
+            LOG.error("group search fail ! - MEMBER:{}", entry.getDn().toString(), e);
+            throw e;
+        } finally {
+            AuthStats.getInstance().record("ldap.group_search", start, success);
+        }
     }
 
-    private List<Entry> search(SearchRequest searchRequest) throws Exception {
-        List<Entry> entries = new ArrayList<>();
-
-        LdapConnection connection = ldapDataSource.connection();
-        PagedResults pagedResults = new PagedResultsDecorator(connection.getCodecService());
-        pagedResults.setSize(LDAP_PAGE_SIZE);
-
-        boolean hasUnwillingToPerform = false;
-        while (true) {
-            EntryCursor cursor = null;
+    private boolean isMemberOfByAttribute(Entry entry) {
+        Attribute memberOf = entry.get(MEMBER_OF);
+        if (memberOf == null) {
+            return false;
+        }
+        for (Value<?> value : memberOf) {
             try {
-                searchRequest.addControl(pagedResults);
-
-                cursor = new EntryCursorImpl(connection.search(searchRequest));
-                while (cursor.next()) {
-                    try {
-                        entries.add(cursor.get());
-                    } catch (CursorLdapReferralException e) {
-                        do {
-                            LOG.warn("referral exception ! - CODE:{} MSG:{} INFO:{} RENAME_DN:{} RESOLVE:{}",
-                                    e.getResultCode(),
-                                    e.getMessage(),
-                                    e.getReferralInfo(),
-                                    e.getRemainingDn(),
-                                    e.getResolvedObject());
-                        } while (e.skipReferral());
-                    } catch (Exception e) {
-                        LOG.error("entry extract error !", e);
-                    }
+                String cn = new Dn(value.getString()).getRdn().getValue();
+                if (groupCNs.contains(cn.toUpperCase())) {
+                    return true;
                 }
+            } catch (LdapInvalidDnException e) {
+                LOG.error("memberOf parse fail ! - DN:{} VALUE:{}", entry.getDn(), value.getString());
+            }
+        }
+        return false;
+    }
 
-                SearchResultDone result = cursor.getSearchResultDone();
-                if (result == null) {
-                    break;
-                }
+    /**
+     * reload members of the configured groups, and swap them in at once.
+     */
+    private void refreshGroupMembers() {
+        try {
+            SearchRequest searchRequest = new SearchRequestImpl();
+            searchRequest.setBase(groupBase);
+            // the group filter of any member, e.g. with its objectClass, narrowed to the configured groups
+            searchRequest.setFilter("(&" + StringUtils.replace(groupFilter, "{MEMBER_DN}", "*") + groupCnFilter + ")");
+            searchRequest.addAttributes("cn", groupMemberAttribute);
+            searchRequest.setScope(SearchScope.SUBTREE);
 
-                pagedResults = (PagedResults) result.getControl(PagedResults.OID);
-                if (result.getLdapResult().getResultCode() == ResultCodeEnum.UNWILLING_TO_PERFORM) {
-                    hasUnwillingToPerform = true;
-                    break;
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+            Set<String> members = new HashSet<>();
+            try (Stream<Entry> groups = search(searchRequest)) {
+                Iterator<Entry> iterator = groups.iterator();
+                while (iterator.hasNext()) {
+                    addMembers(iterator.next(), members);
                 }
             }
+            groupMembers = Collections.unmodifiableSet(members);
+            LOG.info("refresh group members - GROUPS:{} MEMBERS:{}", groupCNs, members.size());
+        } catch (Exception e) {
+            // keep serving the previous snapshot
+            LOG.error("group members refresh fail ! - GROUPS:{}", groupCNs, e);
+        }
+    }
+
+    /**
+     * all members of a group. active directory returns large groups in ranges, e.g. "member;range=0-1499",
+     * and the rest is read range by range until the last one, which ends with "*".
+     *
+     * @throws LdapException if a range is missing. a partial member list would reject the users left out
+     */
+    private void addMembers(Entry group, Set<String> members) throws LdapException {
+        Attribute attribute = group.get(groupMemberAttribute);
+        if (attribute == null) {
+            attribute = rangedMembers(group);
+        }
+        while (attribute != null) {
+            for (Value<?> value : attribute) {
+                members.add(normalize(value.getString()));
+            }
+            String range = StringUtils.substringAfter(attribute.getUpId().toLowerCase(Locale.ROOT), RANGE_OPTION);
+            String end = StringUtils.substringAfter(range, "-");
+            if (range.isEmpty() || "*".equals(end)) {
+                return;
+            }
+            attribute = nextMembers(group, Long.parseLong(end) + 1);
+        }
+    }
 
-            if (pagedResults == null || Strings.isEmpty(pagedResults.getCookie())) {
-                break;
+    /**
+     * @return null if the group has no members
+     */
+    private Attribute rangedMembers(Entry group) {
+        String prefix = groupMemberAttribute.toLowerCase(Locale.ROOT) + RANGE_OPTION;
+        for (Attribute attribute : group) {
+            if (attribute.getUpId().toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                return attribute;
             }
-            pagedResults.setSize(LDAP_PAGE_SIZE);
         }
+        return null;
+    }
+
+    private Attribute nextMembers(Entry group, long start) throws LdapException {
+        SearchRequest searchRequest = new SearchRequestImpl();
+        searchRequest.setBase(group.getDn());
+        searchRequest.setFilter("(objectClass=*)");
+        searchRequest.addAttributes(groupMemberAttribute + RANGE_OPTION + start + "-*");
+        searchRequest.setScope(SearchScope.OBJECT);
+
+        List<Entry> entries;
+        try (LdapPendingSearch search = ldapDataSource.searchAsync(searchRequest)) {
+            entries = search.get();
+        }
+        Attribute attribute = entries.isEmpty() ? null : rangedMembers(entries.get(0));
+        if (attribute == null) {
+            throw new LdapException("group member range missing ! - GROUP:" + group.getDn() + " START:" + start);
+        }
+        return attribute;
+    }
 
-        if (hasUnwillingToPerform) {
-            throw new IllegalStateException("ldap can't handle paging !");
+    private static String normalize(String dn) {
+        try {
+            return new Dn(dn).getNormName().toLowerCase(Locale.ROOT);
+        } catch (LdapInvalidDnException e) {
+            return dn.toLowerCase(Locale.ROOT);
         }
-        return entries;
+    }
+
+    /**
+     * lazily paged results. must be closed, which abandons the search if not fully consumed.
+     */
+    private Stream<Entry> search(SearchRequest searchRequest) throws LdapException {
+        LdapSearchIterator iterator = new LdapSearchIterator(ldapDataSource, searchRequest, ldapDataSource.getPageSize());
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
     }
 }
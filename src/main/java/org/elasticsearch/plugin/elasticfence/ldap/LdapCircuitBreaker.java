@@ -0,0 +1,143 @@
+package org.elasticsearch.plugin.elasticfence.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.plugin.elasticfence.Constants.*;
+
+/**
+ * stops calling ldap when too many lookups fail or are slow, so that requests fail fast instead of waiting for timeouts.
+ * after open_seconds a few lookups are let through, and the breaker closes again if all of them succeed.
+ */
+public class LdapCircuitBreaker {
+    private final static Logger LOG = LogManager.getLogger(LdapCircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final boolean enabled;
+    private final double errorRate;
+    private final long slowNanos;
+    private final int minCalls;
+    private final long windowNanos;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    private State state = State.CLOSED;
+    private long windowStart = System.nanoTime();
+    private int calls;
+    private int errors;
+    private long openedAt;
+    private int probes;
+    private int probeSuccesses;
+
+    public LdapCircuitBreaker(Settings settings) {
+        this.enabled = settings.getAsBoolean(SETTINGS_LDAP_BREAKER_ENABLED, true);
+        this.errorRate = settings.getAsDouble(SETTINGS_LDAP_BREAKER_ERROR_RATE, 0.5);
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(settings.getAsLong(SETTINGS_LDAP_BREAKER_SLOW_MILLIS, 5000L));
+        this.minCalls = settings.getAsInt(SETTINGS_LDAP_BREAKER_MIN_CALLS, 20);
+        this.windowNanos = TimeUnit.SECONDS.toNanos(settings.getAsInt(SETTINGS_LDAP_BREAKER_WINDOW_SECONDS, 10));
+        this.openNanos = TimeUnit.SECONDS.toNanos(settings.getAsInt(SETTINGS_LDAP_BREAKER_OPEN_SECONDS, 30));
+        this.halfOpenCalls = settings.getAsInt(SETTINGS_LDAP_BREAKER_HALF_OPEN_CALLS, 3);
+        AuthStats.getInstance().gauge("ldap.breaker.state", () -> getState().ordinal());
+    }
+
+    /**
+     * true if a lookup may go to ldap. every allowed lookup must be followed by {@link #record(long, boolean)}.
+     */
+    public synchronized boolean allow() {
+        if (!enabled) {
+            return true;
+        }
+        switch (state) {
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                halfOpen();
+                return probe();
+            case HALF_OPEN:
+                return probe();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * outcome of an allowed lookup. a lookup slower than slow_millis counts as a failure.
+     */
+    public synchronized void record(long startNanos, boolean success) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        boolean failed = !success || now - startNanos > slowNanos;
+        switch (state) {
+            case HALF_OPEN:
+                if (failed) {
+                    open(now, "probe failed");
+                } else if (++probeSuccesses >= halfOpenCalls) {
+                    close(now);
+                }
+                break;
+            case CLOSED:
+                if (now - windowStart > windowNanos) {
+                    windowStart = now;
+                    calls = 0;
+                    errors = 0;
+                }
+                calls++;
+                if (failed) {
+                    errors++;
+                }
+                if (calls >= minCalls && errors >= calls * errorRate) {
+                    open(now, errors + "/" + calls + " failed or slow");
+                }
+                break;
+            default:
+                // started before the breaker opened
+        }
+    }
+
+    private void halfOpen() {
+        state = State.HALF_OPEN;
+        probes = 0;
+        probeSuccesses = 0;
+        LOG.info("ldap circuit breaker half open - PROBES:{}", halfOpenCalls);
+    }
+
+    /**
+     * true if one more probe lookup may go to ldap while half open.
+     */
+    private boolean probe() {
+        if (probes < halfOpenCalls) {
+            probes++;
+            return true;
+        }
+        return false;
+    }
+
+    private void open(long now, String reason) {
+        state = State.OPEN;
+        openedAt = now;
+        AuthStats.getInstance().increment("ldap.breaker.trips");
+        LOG.warn("ldap circuit breaker open ! - {} OPEN_SECONDS:{}", reason, TimeUnit.NANOSECONDS.toSeconds(openNanos));
+    }
+
+    private void close(long now) {
+        state = State.CLOSED;
+        windowStart = now;
+        calls = 0;
+        errors = 0;
+        LOG.info("ldap circuit breaker closed");
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
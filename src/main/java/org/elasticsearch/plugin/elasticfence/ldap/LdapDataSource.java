@@ -1,21 +1,42 @@
 package org.elasticsearch.plugin.elasticfence.ldap;
 
-import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.directory.api.ldap.codec.controls.search.pagedSearch.PagedResultsFactory;
 import org.apache.directory.api.ldap.codec.standalone.StandaloneLdapApiService;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.ldap.client.api.LdapAsyncConnection;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.ldap.client.api.LdapConnectionConfig;
-import org.apache.directory.ldap.client.api.LdapNetworkConnection;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
 
 import javax.net.ssl.X509TrustManager;
+import java.net.InetSocketAddress;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
 
 import static org.elasticsearch.plugin.elasticfence.Constants.*;
 
+/**
+ * connections to the configured ldap servers. each borrow picks a healthy server by the configured strategy,
+ * and falls over to the next one when it can't connect.
+ */
 public class LdapDataSource {
     private final static Logger LOG = LogManager.getLogger(LdapDataSource.class);
 
@@ -23,22 +44,109 @@ public class LdapDataSource {
         System.setProperty(StandaloneLdapApiService.CONTROLS_LIST, PagedResultsFactory.class.getName());
     }
 
-    @Getter
-    private final LdapConnectionConfig config;
-    private LdapConnection connection;
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_OUTSTANDING, LOWEST_LATENCY
+    }
+
+    private final List<LdapServer> servers;
+    private final Strategy strategy;
+    private final int minSize;
+    private final long timeoutMillis;
+    // entries per page of paged searches
+    private volatile int pageSize;
+    private final AtomicInteger next = new AtomicInteger();
+    // server and borrow time of each borrowed connection
+    private final ConcurrentMap<LdapConnection, Lease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService healthChecker;
 
     public LdapDataSource(Settings settings, String bindDn, String bindPassword) {
-        this.config = config(settings, bindDn, bindPassword);
+        this.minSize = settings.getAsInt(SETTINGS_LDAP_POOL_MIN_SIZE, 1);
+        this.timeoutMillis = settings.getAsLong(SETTINGS_LDAP_TIMEOUT_MILLIS, LdapConnectionConfig.DEFAULT_TIMEOUT);
+        this.pageSize = settings.getAsInt(SETTINGS_LDAP_PAGE_SIZE, LDAP_PAGE_SIZE);
+        this.strategy = Strategy.valueOf(settings.get(SETTINGS_LDAP_STRATEGY, "round_robin").toUpperCase(Locale.ROOT));
+
+        int defaultPort = settings.getAsInt(SETTINGS_LDAP_PORT, 389);
+        int pipelineConnections = settings.getAsInt(SETTINGS_LDAP_PIPELINE_CONNECTIONS, 2);
+        List<LdapServer> servers = new ArrayList<>();
+        for (String address : StringUtils.split(settings.get(SETTINGS_LDAP_HOST, ""), ", ")) {
+            InetSocketAddress server = parseAddress(address, defaultPort);
+            servers.add(new LdapServer(config(settings, server.getHostString(), server.getPort(), bindDn, bindPassword),
+                    poolConfig(settings), pipelineConnections));
+        }
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("undefined ldap host !");
+        }
+        this.servers = Collections.unmodifiableList(servers);
+
+        int healthCheckSeconds = settings.getAsInt(SETTINGS_LDAP_HEALTH_CHECK_SECONDS, 10);
+        if (healthCheckSeconds > 0) {
+            this.healthChecker = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("elasticfence_ldap_health"));
+            this.healthChecker.scheduleWithFixedDelay(this::checkHealth, healthCheckSeconds, healthCheckSeconds, TimeUnit.SECONDS);
+        } else {
+            this.healthChecker = null;
+        }
+        LOG.info("ldap servers - SERVERS:{} STRATEGY:{}", servers.stream().map(LdapServer::getAddress).toArray(), strategy);
+    }
+
+    /**
+     * "host", "host:port", "[v6 address]" or "[v6 address]:port". a v6 address without brackets has no port.
+     */
+    static InetSocketAddress parseAddress(String address, int defaultPort) {
+        String host = address;
+        String port = null;
+        if (address.startsWith("[")) {
+            int end = address.indexOf(']');
+            String rest = end < 0 ? "" : address.substring(end + 1);
+            if (end < 0 || !(rest.isEmpty() || rest.startsWith(":"))) {
+                throw new IllegalArgumentException("invalid ldap host ! - HOST:" + address);
+            }
+            host = address.substring(1, end);
+            port = rest.isEmpty() ? null : rest.substring(1);
+        } else if (StringUtils.countMatches(address, ':') == 1) {
+            host = StringUtils.substringBefore(address, ":");
+            port = StringUtils.substringAfter(address, ":");
+        }
+        try {
+            return InetSocketAddress.createUnresolved(host, port == null ? defaultPort : Integer.parseInt(port));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid ldap host ! - HOST:" + address, e);
+        }
+    }
+
+    /**
+     * report the pools and servers of this data source in the stats. only for the one in use, not for one still being tried.
+     */
+    void registerGauges() {
+        AuthStats stats = AuthStats.getInstance();
+        stats.gauge("pool.search.active", () -> sum(LdapServer::getNumActive));
+        stats.gauge("pool.search.idle", () -> sum(LdapServer::getNumIdle));
+        stats.gauge("pool.bind.active", () -> sum(LdapServer::getBindNumActive));
+        stats.gauge("pool.bind.idle", () -> sum(LdapServer::getBindNumIdle));
+        stats.gauge("ldap.servers.total", servers::size);
+        stats.gauge("ldap.servers.healthy", () -> sum(server -> server.isHealthy() ? 1 : 0));
     }
 
-    public LdapDataSource(LdapConnectionConfig config) {
-        this.config = config;
+    int getPageSize() {
+        return pageSize;
     }
 
-    private LdapConnectionConfig config(Settings settings, String bindDn, String bindPassword) {
+    /**
+     * applies to searches started from now on.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    private long sum(ToIntFunction<LdapServer> value) {
+        return servers.stream().mapToInt(value).sum();
+    }
+
+    private LdapConnectionConfig config(Settings settings, String host, int port, String bindDn, String bindPassword) {
         LdapConnectionConfig config = new LdapConnectionConfig();
-        config.setLdapHost(settings.get(SETTINGS_LDAP_HOST));
-        config.setLdapPort(settings.getAsInt(SETTINGS_LDAP_PORT, 389));
+        config.setLdapHost(host);
+        config.setLdapPort(port);
+        // connect and response timeout. a dead server holds a request this long before the next one is tried
+        config.setTimeout(timeoutMillis);
         if (settings.getAsBoolean(SETTINGS_LDAP_SSL, false)) {
             config.setUseSsl(true);
             config.setTrustManagers(new X509TrustManager() {
@@ -65,39 +173,188 @@ public class LdapDataSource {
         return config;
     }
 
-    public synchronized LdapConnection connection() throws LdapException {
-        if (!isConnected()) {
-            connect();
+    private GenericObjectPool.Config poolConfig(Settings settings) {
+        int maxSize = settings.getAsInt(SETTINGS_LDAP_POOL_MAX_SIZE, 8);
+        long idleMillis = settings.getAsInt(SETTINGS_LDAP_POOL_IDLE_SECONDS, 300) * 1000L;
+
+        GenericObjectPool.Config poolConfig = new GenericObjectPool.Config();
+        poolConfig.minIdle = Math.min(minSize, maxSize);
+        poolConfig.maxIdle = maxSize;
+        poolConfig.maxActive = maxSize;
+        poolConfig.maxWait = settings.getAsInt(SETTINGS_LDAP_POOL_MAX_WAIT_MILLIS, 5000);
+        poolConfig.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+        poolConfig.testOnBorrow = true;
+        poolConfig.testOnReturn = false;
+        poolConfig.testWhileIdle = true;
+        poolConfig.timeBetweenEvictionRunsMillis = idleMillis / 2;
+        poolConfig.numTestsPerEvictionRun = maxSize;
+        poolConfig.minEvictableIdleTimeMillis = idleMillis;
+        poolConfig.softMinEvictableIdleTimeMillis = -1;
+        poolConfig.lifo = true;
+        return poolConfig;
+    }
+
+    /**
+     * open min_size connections up front, so the first requests don't pay for connect and bind.
+     */
+    public void warmUp() {
+        for (LdapServer server : servers) {
+            server.warmUp(minSize);
         }
-        return connection;
     }
 
-    private void connect() throws LdapException {
-        if (isConnected()) {
-            disconnect();
+    /**
+     * check all servers now.
+     *
+     * @return true if any of them answers
+     */
+    public boolean probe() {
+        checkHealth();
+        return servers.stream().anyMatch(LdapServer::isHealthy);
+    }
+
+    private void checkHealth() {
+        for (LdapServer server : servers) {
+            if (server.probe()) {
+                AuthStats.getInstance().increment("ldap.servers.readmissions");
+            }
         }
-        try {
-            connection = new LdapNetworkConnection(config);
-            connection.bind();
-        } catch (LdapException e) {
-            disconnect();
-            throw e;
+    }
+
+    /**
+     * healthy servers in the order of the strategy. all servers if none is healthy, rather than failing at once.
+     */
+    private List<LdapServer> candidates() {
+        List<LdapServer> candidates = new ArrayList<>(servers.size());
+        for (LdapServer server : servers) {
+            if (server.isHealthy()) {
+                candidates.add(server);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(servers);
         }
+
+        switch (strategy) {
+            case LEAST_OUTSTANDING:
+                candidates.sort(Comparator.comparingInt(LdapServer::getOutstanding));
+                break;
+            case LOWEST_LATENCY:
+                candidates.sort(Comparator.comparingLong(LdapServer::getLatencyMicros));
+                break;
+            default:
+                Collections.rotate(candidates, -Math.floorMod(next.getAndIncrement(), candidates.size()));
+        }
+        return candidates;
     }
 
-    private boolean isConnected() {
-        return connection != null && connection.isConnected();
+    private LdapConnection borrow(boolean bind) throws LdapException {
+        LdapException failure = null;
+        for (LdapServer server : candidates()) {
+            try {
+                long start = System.nanoTime();
+                LdapConnection connection = bind ? server.bindConnection() : server.connection();
+                leases.put(connection, new Lease(server, start));
+                return connection;
+            } catch (LdapException e) {
+                LOG.warn("ldap connect fail ! - try next server - SERVER:{} MSG:{}", server.getAddress(), e.getMessage());
+                AuthStats.getInstance().increment("ldap.servers.failovers");
+                failure = e;
+            }
+        }
+        throw failure;
     }
 
-    public void disconnect() {
-        if (isConnected()) {
+    /**
+     * send a search without waiting for it, on a connection shared with other searches.
+     * the results are collected with {@link LdapPendingSearch#get()}, and the search must be closed.
+     */
+    LdapPendingSearch searchAsync(SearchRequest searchRequest) throws LdapException {
+        LdapException failure = null;
+        for (LdapServer server : candidates()) {
+            long start = System.nanoTime();
+            LdapAsyncConnection connection;
+            try {
+                connection = server.pipeline();
+            } catch (LdapException e) {
+                LOG.warn("ldap connect fail ! - try next server - SERVER:{} MSG:{}", server.getAddress(), e.getMessage());
+                AuthStats.getInstance().increment("ldap.servers.failovers");
+                failure = e;
+                continue;
+            }
             try {
-                connection.unBind();
-                connection.close();
-            } catch (Exception e) {
-                LOG.error("ldap connection close error !", e);
+                return new LdapPendingSearch(server, connection, connection.searchAsync(searchRequest), start, timeoutMillis);
+            } catch (LdapException | RuntimeException e) {
+                server.discard(connection);
+                server.failure(e);
+                server.complete(start);
+                throw e;
             }
         }
-        connection = null;
+        throw failure;
+    }
+
+    /**
+     * borrow a bound connection. must be returned with {@link #release(LdapConnection)}.
+     */
+    public LdapConnection connection() throws LdapException {
+        return borrow(false);
+    }
+
+    public void release(LdapConnection connection) {
+        Lease lease = connection == null ? null : leases.remove(connection);
+        if (lease != null) {
+            lease.server.release(connection, lease.start);
+        }
+    }
+
+    /**
+     * borrow a connected but unbound connection for verifying user credentials.
+     * must be returned with {@link #releaseBindConnection(LdapConnection)}.
+     */
+    public LdapConnection bindConnection() throws LdapException {
+        return borrow(true);
+    }
+
+    public void releaseBindConnection(LdapConnection connection) {
+        Lease lease = connection == null ? null : leases.remove(connection);
+        if (lease != null) {
+            lease.server.releaseBindConnection(connection, lease.start);
+        }
+    }
+
+    /**
+     * result of an operation on a borrowed connection. failures count towards ejecting its server.
+     * must be called before the connection is released.
+     */
+    public void report(LdapConnection connection, Exception failure) {
+        Lease lease = connection == null ? null : leases.get(connection);
+        if (lease == null) {
+            return;
+        }
+        if (failure == null) {
+            lease.server.success();
+        } else {
+            lease.server.failure(failure);
+        }
+    }
+
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        for (LdapServer server : servers) {
+            server.close();
+        }
+    }
+
+    private static class Lease {
+        private final LdapServer server;
+        private final long start;
+
+        Lease(LdapServer server, long start) {
+            this.server = server;
+            this.start = start;
+        }
     }
 }
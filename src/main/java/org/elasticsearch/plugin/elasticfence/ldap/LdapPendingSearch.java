@@ -0,0 +1,112 @@
+package org.elasticsearch.plugin.elasticfence.ldap;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultReference;
+import org.apache.directory.ldap.client.api.LdapAsyncConnection;
+import org.apache.directory.ldap.client.api.future.SearchFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a search sent on a pipelined connection. the caller may do other work, e.g. a bind, before collecting the results.
+ * closing before the results are collected abandons the search.
+ */
+class LdapPendingSearch implements AutoCloseable {
+    private final static Logger LOG = LogManager.getLogger(LdapPendingSearch.class);
+    // wake up this often to notice a connection closed under the search
+    private final static long POLL_MILLIS = 100;
+
+    private final LdapServer server;
+    private final LdapAsyncConnection connection;
+    private final SearchFuture future;
+    private final long startNanos;
+    private final long timeoutMillis;
+    private boolean completed;
+
+    LdapPendingSearch(LdapServer server, LdapAsyncConnection connection, SearchFuture future, long startNanos, long timeoutMillis) {
+        this.server = server;
+        this.connection = connection;
+        this.future = future;
+        this.startNanos = startNanos;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * wait for all entries of the search.
+     */
+    List<Entry> get() throws LdapException {
+        List<Entry> entries = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (true) {
+                Response response = future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (response == null) {
+                    // a timeout or a broken connection. an error result of the server leaves the connection usable
+                    if (future.isCancelled()) {
+                        server.discard(connection);
+                        throw new LdapException("ldap search cancelled ! - " + future.getCause(), future.getCause());
+                    }
+                    if (System.nanoTime() > deadline) {
+                        server.discard(connection);
+                        throw new LdapException("ldap search timeout ! - MILLIS:" + timeoutMillis);
+                    }
+                } else if (response instanceof SearchResultEntry) {
+                    entries.add(((SearchResultEntry) response).getEntry());
+                } else if (response instanceof SearchResultReference) {
+                    LOG.warn("referral skipped ! - REFERRAL:{}", ((SearchResultReference) response).getReferral());
+                } else if (response instanceof SearchResultDone) {
+                    LdapResult result = ((SearchResultDone) response).getLdapResult();
+                    // the size limit is part of the question, not an error
+                    if (result.getResultCode() != ResultCodeEnum.SUCCESS && result.getResultCode() != ResultCodeEnum.SIZE_LIMIT_EXCEEDED) {
+                        throw new LdapOperationException(result.getResultCode(), result.getDiagnosticMessage());
+                    }
+                    complete(null);
+                    return entries;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LdapException failure = new LdapException("interrupted while waiting for ldap search !", e);
+            complete(failure);
+            throw failure;
+        } catch (LdapException e) {
+            complete(e);
+            throw e;
+        }
+    }
+
+    private void complete(Exception failure) {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        if (failure != null) {
+            future.cancel(true);
+            server.failure(failure);
+        } else {
+            server.success();
+        }
+        server.complete(startNanos);
+    }
+
+    @Override
+    public void close() {
+        if (!completed) {
+            completed = true;
+            // abandons the search on the server
+            future.cancel(true);
+            server.complete(startNanos);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.elasticsearch.plugin.elasticfence.ldap;
+
+import org.apache.directory.api.ldap.codec.controls.search.pagedSearch.PagedResultsDecorator;
+import org.apache.directory.api.ldap.model.cursor.CursorLdapReferralException;
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.EntryCursorImpl;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * lazily paged search results. the next page is requested only when the current one is consumed.
+ * closing before the end abandons the running search, releases the paged result set held by the server,
+ * and returns the connection to the pool.
+ */
+class LdapSearchIterator implements Iterator<Entry>, AutoCloseable {
+    private final static Logger LOG = LogManager.getLogger(LdapSearchIterator.class);
+
+    private final LdapDataSource ldapDataSource;
+    private final SearchRequest searchRequest;
+    private final int pageSize;
+    private LdapConnection connection;
+    private PagedResults pagedResults;
+    private EntryCursor cursor;
+    private Entry next;
+    private boolean done;
+    // all pages read. the server holds no result set anymore
+    private boolean exhausted;
+
+    LdapSearchIterator(LdapDataSource ldapDataSource, SearchRequest searchRequest, int pageSize) throws LdapException {
+        this.ldapDataSource = ldapDataSource;
+        this.searchRequest = searchRequest;
+        this.pageSize = pageSize;
+        this.connection = ldapDataSource.connection();
+        this.pagedResults = new PagedResultsDecorator(connection.getCodecService());
+        this.pagedResults.setSize(pageSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null && !done) {
+                if (cursor == null) {
+                    searchRequest.addControl(pagedResults);
+                    cursor = new EntryCursorImpl(connection.search(searchRequest));
+                }
+                if (cursor.next()) {
+                    next = extract();
+                } else {
+                    nextPage();
+                }
+            }
+            return next != null;
+        } catch (RuntimeException e) {
+            ldapDataSource.report(connection, e);
+            throw e;
+        } catch (Exception e) {
+            ldapDataSource.report(connection, e);
+            throw new IllegalStateException("ldap search fail ! - BASE:" + searchRequest.getBase(), e);
+        }
+    }
+
+    @Override
+    public Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry entry = next;
+        next = null;
+        return entry;
+    }
+
+    private Entry extract() {
+        try {
+            return cursor.get();
+        } catch (CursorLdapReferralException e) {
+            do {
+                LOG.warn("referral exception ! - CODE:{} MSG:{} INFO:{} RENAME_DN:{} RESOLVE:{}",
+                        e.getResultCode(),
+                        e.getMessage(),
+                        e.getReferralInfo(),
+                        e.getRemainingDn(),
+                        e.getResolvedObject());
+            } while (e.skipReferral());
+        } catch (Exception e) {
+            LOG.error("entry extract error !", e);
+        }
+        return null;
+    }
+
+    private void nextPage() throws Exception {
+        SearchResultDone result = cursor.getSearchResultDone();
+        cursor.close();
+        cursor = null;
+
+        if (result == null) {
+            throw new IllegalStateException("ldap search ended without result !");
+        }
+        // e.g. a size, time or admin limit, or a busy server. the entries so far are only part of the answer
+        LdapResult ldapResult = result.getLdapResult();
+        if (ldapResult.getResultCode() != ResultCodeEnum.SUCCESS) {
+            throw new LdapOperationException(ldapResult.getResultCode(), ldapResult.getDiagnosticMessage());
+        }
+
+        pagedResults = (PagedResults) result.getControl(PagedResults.OID);
+        if (pagedResults == null || Strings.isEmpty(pagedResults.getCookie())) {
+            done = true;
+            exhausted = true;
+            ldapDataSource.report(connection, null);
+            return;
+        }
+        pagedResults.setSize(pageSize);
+    }
+
+    /**
+     * a page of size 0 with the last cookie, which tells the server to drop the rest of the result set.
+     */
+    private void releasePages() {
+        try {
+            pagedResults.setSize(0);
+            searchRequest.addControl(pagedResults);
+            EntryCursor release = new EntryCursorImpl(connection.search(searchRequest));
+            try {
+                while (release.next()) {
+                    // no entries are expected
+                }
+            } finally {
+                release.close();
+            }
+        } catch (Exception e) {
+            LOG.debug("paged search release fail ! - BASE:{} MSG:{}", searchRequest.getBase(), e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        done = true;
+        next = null;
+        if (cursor != null) {
+            try {
+                // abandons the search if it is still running
+                cursor.close();
+            } catch (Exception e) {
+                LOG.error("ldap cursor close error !", e);
+            }
+            cursor = null;
+        }
+        // the last cookie of the server, if a page after the first one was reached
+        if (!exhausted && connection != null && !Strings.isEmpty(pagedResults.getCookie())) {
+            releasePages();
+        }
+        if (connection != null) {
+            ldapDataSource.release(connection);
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package org.elasticsearch.plugin.elasticfence.ldap;
+
+import lombok.Getter;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.DefaultLdapConnectionFactory;
+import org.apache.directory.ldap.client.api.DefaultLdapConnectionValidator;
+import org.apache.directory.ldap.client.api.DefaultPoolableLdapConnectionFactory;
+import org.apache.directory.ldap.client.api.LdapAsyncConnection;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.ldap.client.api.LdapConnectionConfig;
+import org.apache.directory.ldap.client.api.LdapConnectionPool;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.ldap.client.api.ValidatingPoolableLdapConnectionFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * one ldap server of the list, with its own connection pools and health.
+ */
+class LdapServer {
+    private final static Logger LOG = LogManager.getLogger(LdapServer.class);
+    // consecutive operation failures before the server is ejected
+    private final static int MAX_FAILURES = 3;
+
+    @Getter
+    private final String address;
+    private final LdapConnectionConfig config;
+    // service account connections shared by concurrent searches. responses are matched to requests by message id
+    private final AtomicReferenceArray<LdapNetworkConnection> pipelines;
+    private final Object[] pipelineLocks;
+    private final AtomicInteger nextPipeline = new AtomicInteger();
+    private final LdapConnectionPool pool;
+    private final LdapConnectionPool bindPool;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    // moving average of operation latency
+    private volatile long latencyMicros;
+    private volatile boolean healthy = true;
+
+    LdapServer(LdapConnectionConfig config, GenericObjectPool.Config poolConfig, int pipelineConnections) {
+        String host = config.getLdapHost();
+        this.address = (host.contains(":") ? "[" + host + "]" : host) + ":" + config.getLdapPort();
+        this.config = config;
+        this.pipelines = new AtomicReferenceArray<>(pipelineConnections);
+        this.pipelineLocks = new Object[pipelineConnections];
+        for (int i = 0; i < pipelineConnections; i++) {
+            pipelineLocks[i] = new Object();
+        }
+
+        ValidatingPoolableLdapConnectionFactory factory = new ValidatingPoolableLdapConnectionFactory(config);
+        factory.setValidator(new DefaultLdapConnectionValidator());
+        this.pool = new LdapConnectionPool(factory, poolConfig);
+
+        // connections for user password checks. they are re-bound as each user, so never bound as the service account
+        DefaultPoolableLdapConnectionFactory bindFactory = new DefaultPoolableLdapConnectionFactory(new UnboundLdapConnectionFactory(config));
+        bindFactory.setValidator(LdapConnection::isConnected);
+        this.bindPool = new LdapConnectionPool(bindFactory, poolConfig);
+    }
+
+    LdapConnection connection() throws LdapException {
+        return borrow(pool);
+    }
+
+    LdapConnection bindConnection() throws LdapException {
+        return borrow(bindPool);
+    }
+
+    private LdapConnection borrow(LdapConnectionPool pool) throws LdapException {
+        try {
+            LdapConnection connection = pool.getConnection();
+            outstanding.incrementAndGet();
+            return connection;
+        } catch (LdapException e) {
+            // can't even connect. no point in trying it again before the health check.
+            // an exhausted pool throws NoSuchElementException instead, which is not the server's fault
+            eject(e);
+            throw e;
+        }
+    }
+
+    /**
+     * a bound connection to send a search on without taking it from others. reconnects if broken.
+     * every search must be followed by {@link #complete(long)}.
+     */
+    LdapAsyncConnection pipeline() throws LdapException {
+        int slot = Math.floorMod(nextPipeline.getAndIncrement(), pipelines.length());
+        LdapNetworkConnection connection = pipelines.get(slot);
+        if (connection == null || !connection.isConnected() || !connection.isAuthenticated()) {
+            synchronized (pipelineLocks[slot]) {
+                connection = pipelines.get(slot);
+                if (connection == null || !connection.isConnected() || !connection.isAuthenticated()) {
+                    closeQuietly(connection);
+                    connection = new LdapNetworkConnection(config);
+                    try {
+                        connection.bind();
+                    } catch (LdapException e) {
+                        closeQuietly(connection);
+                        eject(e);
+                        throw e;
+                    }
+                    pipelines.set(slot, connection);
+                }
+            }
+        }
+        outstanding.incrementAndGet();
+        return connection;
+    }
+
+    /**
+     * drop a pipelined connection that timed out or broke, so that the next search on its slot reconnects.
+     * a half-open connection still looks connected, and would time out every search sent on it.
+     */
+    void discard(LdapAsyncConnection connection) {
+        for (int i = 0; i < pipelines.length(); i++) {
+            if (pipelines.compareAndSet(i, (LdapNetworkConnection) connection, null)) {
+                LOG.warn("ldap pipelined connection dropped ! - SERVER:{} SLOT:{}", address, i);
+                closeQuietly((LdapNetworkConnection) connection);
+                return;
+            }
+        }
+    }
+
+    /**
+     * end of an operation started on a pipelined connection.
+     */
+    void complete(long startNanos) {
+        outstanding.decrementAndGet();
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        // racy update is fine. it only orders the servers
+        latencyMicros = latencyMicros == 0 ? micros : (latencyMicros * 4 + micros) / 5;
+    }
+
+    private static void closeQuietly(LdapConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (Exception e) {
+            LOG.debug("ldap connection close error !", e);
+        }
+    }
+
+    void release(LdapConnection connection, long startNanos) {
+        release(pool, connection, startNanos);
+    }
+
+    void releaseBindConnection(LdapConnection connection, long startNanos) {
+        release(bindPool, connection, startNanos);
+    }
+
+    private void release(LdapConnectionPool pool, LdapConnection connection, long startNanos) {
+        complete(startNanos);
+        try {
+            pool.releaseConnection(connection);
+        } catch (Exception e) {
+            LOG.error("ldap connection release error ! - SERVER:{}", address, e);
+        }
+    }
+
+    void success() {
+        failures.set(0);
+        if (!healthy) {
+            // tried anyway as all servers were down. it works again
+            healthy = true;
+            LOG.info("ldap server re-admitted - SERVER:{}", address);
+        }
+    }
+
+    void failure(Exception e) {
+        if (failures.incrementAndGet() >= MAX_FAILURES) {
+            eject(e);
+        }
+    }
+
+    private void eject(Exception e) {
+        if (healthy) {
+            healthy = false;
+            LOG.warn("ldap server ejected ! - SERVER:{} MSG:{}", address, e.getMessage());
+        }
+    }
+
+    /**
+     * read the root DSE with a pooled service account connection. re-admits the server on success.
+     */
+    boolean probe() {
+        LdapConnection connection = null;
+        long start = System.nanoTime();
+        try {
+            connection = pool.getConnection();
+            outstanding.incrementAndGet();
+            if (!connection.exists(Dn.ROOT_DSE)) {
+                throw new IllegalStateException("root DSE not found");
+            }
+            failures.set(0);
+            if (!healthy) {
+                healthy = true;
+                LOG.info("ldap server re-admitted - SERVER:{}", address);
+                return true;
+            }
+        } catch (NoSuchElementException e) {
+            // all connections are busy. alive, at least
+            LOG.debug("ldap health check skipped, pool exhausted - SERVER:{}", address);
+        } catch (Exception e) {
+            eject(e);
+        } finally {
+            if (connection != null) {
+                release(pool, connection, start);
+            }
+        }
+        return false;
+    }
+
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    /**
+     * open connections up to minSize in both pools.
+     */
+    void warmUp(int minSize) {
+        warmUp(pool, "search", minSize);
+        warmUp(bindPool, "bind", minSize);
+    }
+
+    private void warmUp(LdapConnectionPool pool, String name, int minSize) {
+        try {
+            for (int i = pool.getNumIdle() + pool.getNumActive(); i < minSize; i++) {
+                pool.addObject();
+            }
+            LOG.info("ldap connection pool ready - SERVER:{} POOL:{} IDLE:{} MAX:{}", address, name, pool.getNumIdle(), pool.getMaxActive());
+        } catch (Exception e) {
+            // not fatal. the pool opens connections on demand once ldap is reachable
+            LOG.error("ldap connection pool warm up fail ! - SERVER:{} POOL:{} IDLE:{}", address, name, pool.getNumIdle(), e);
+        }
+    }
+
+    int getNumActive() {
+        return pool.getNumActive();
+    }
+
+    int getNumIdle() {
+        return pool.getNumIdle();
+    }
+
+    int getBindNumActive() {
+        return bindPool.getNumActive();
+    }
+
+    int getBindNumIdle() {
+        return bindPool.getNumIdle();
+    }
+
+    void close() {
+        for (int i = 0; i < pipelines.length(); i++) {
+            closeQuietly(pipelines.getAndSet(i, null));
+        }
+        try {
+            pool.close();
+            bindPool.close();
+        } catch (Exception e) {
+            LOG.error("ldap connection pool close error ! - SERVER:{}", address, e);
+        }
+    }
+
+    private static class UnboundLdapConnectionFactory extends DefaultLdapConnectionFactory {
+
+        UnboundLdapConnectionFactory(LdapConnectionConfig config) {
+            super(config);
+        }
+
+        @Override
+        public LdapConnection bindConnection(LdapConnection connection) throws LdapException {
+            connection.connect();
+            return connection;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.elasticsearch.plugin.elasticfence.ldap;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+
+/**
+ * ldap was not asked, e.g. while the circuit breaker is open. nothing is known about the user.
+ */
+public class LdapUnavailableException extends LdapException {
+    public LdapUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,278 @@
+package org.elasticsearch.plugin.elasticfence.ldap;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.FilterEncoder;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.elasticsearch.plugin.elasticfence.Constants.*;
+
+/**
+ * username to DN of all users of the user base, so that a login needs a bind only, without a user search.
+ * <p>
+ * loaded in pages at start and on every reload, and kept current in between by searching users changed since the last
+ * sync, by a timestamp attribute. a user deleted from the directory stays until the next reload, but can't bind anyway.
+ * DNs are kept as their first RDN, in UTF-8, and a parent DN shared by all users of the same container.
+ */
+class LdapUserIndex {
+    private final static Logger LOG = LogManager.getLogger(LdapUserIndex.class);
+    // a username of several users. they are searched as before
+    private final static IndexedDn AMBIGUOUS = new IndexedDn(null, null);
+    // an "attribute={USERNAME}" term of the user filter
+    private final static Pattern USERNAME_TERM = Pattern.compile("\\(\\s*([\\w.;-]+)\\s*=\\s*\\{USERNAME}\\s*\\)");
+
+    private final LdapDataSource ldapDataSource;
+    private final Dn userBase;
+    // user filter matching every user
+    private final String allUsersFilter;
+    private final String usernameAttribute;
+    private final String timestampAttribute;
+    private final long reloadNanos;
+    private final ScheduledExecutorService syncer;
+
+    private volatile Index index;
+    private long lastReload;
+
+    private static class IndexedDn {
+        private final String parent;
+        private final byte[] rdn;
+
+        IndexedDn(String parent, byte[] rdn) {
+            this.parent = parent;
+            this.rdn = rdn;
+        }
+
+        String toDn() {
+            String rdn = new String(this.rdn, Charsets.UTF_8);
+            return parent.isEmpty() ? rdn : rdn + "," + parent;
+        }
+    }
+
+    private static class Index {
+        private final Map<String, IndexedDn> users = new ConcurrentHashMap<>();
+        // one instance of each parent DN. the syncer thread only
+        private final Map<String, String> parents = new HashMap<>();
+        // highest timestamp seen. users changed at or after it are searched on the next sync
+        private volatile String watermark;
+
+        /**
+         * @param replace true if the user has changed, false if a second user of the same name may be added
+         */
+        void put(String username, String dn, boolean replace) {
+            int comma = indexOfRdnEnd(dn);
+            String parent = comma < 0 ? "" : dn.substring(comma + 1);
+            String rdn = comma < 0 ? dn : dn.substring(0, comma);
+            IndexedDn indexed = new IndexedDn(parents.computeIfAbsent(parent, key -> key), rdn.getBytes(Charsets.UTF_8));
+            users.merge(username, indexed, (current, added) -> {
+                if (current == AMBIGUOUS) {
+                    return AMBIGUOUS;
+                }
+                return replace || current.toDn().equalsIgnoreCase(added.toDn()) ? added : AMBIGUOUS;
+            });
+        }
+
+        /**
+         * @return true if the username was mapped to the DN
+         */
+        boolean remove(String username, String dn) {
+            boolean[] removed = {false};
+            users.computeIfPresent(username, (key, current) -> {
+                if (current != AMBIGUOUS && current.toDn().equalsIgnoreCase(dn)) {
+                    removed[0] = true;
+                    return null;
+                }
+                return current;
+            });
+            return removed[0];
+        }
+
+        // the first comma not escaped
+        private static int indexOfRdnEnd(String dn) {
+            for (int i = 0; i < dn.length(); i++) {
+                char c = dn.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == ',') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    LdapUserIndex(Settings settings, LdapDataSource ldapDataSource, Dn userBase, String userFilter) {
+        this.ldapDataSource = ldapDataSource;
+        this.userBase = userBase;
+        this.allUsersFilter = StringUtils.replace(userFilter, "{USERNAME}", "*");
+        this.usernameAttribute = usernameAttribute(userFilter, settings.get(SETTINGS_LDAP_USER_INDEX_ATTRIBUTE));
+        this.timestampAttribute = settings.get(SETTINGS_LDAP_USER_INDEX_TIMESTAMP_ATTRIBUTE, "modifyTimestamp");
+        this.reloadNanos = TimeUnit.SECONDS.toNanos(settings.getAsInt(SETTINGS_LDAP_USER_INDEX_RELOAD_SECONDS, 3600));
+        int syncSeconds = settings.getAsInt(SETTINGS_LDAP_USER_INDEX_SYNC_SECONDS, 60);
+
+        this.syncer = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("elasticfence_user_index"));
+        this.syncer.scheduleWithFixedDelay(this::sync, 0, syncSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * the attribute the user filter matches the username against, so that the index finds the same users as the search.
+     *
+     * @param configured the attribute setting, if any. must be the one of the filter
+     * @throws IllegalArgumentException if the filter has no single "attribute={USERNAME}" term, or the setting disagrees
+     */
+    static String usernameAttribute(String userFilter, String configured) {
+        Set<String> attributes = new HashSet<>();
+        Matcher matcher = USERNAME_TERM.matcher(userFilter);
+        int terms = 0;
+        while (matcher.find()) {
+            attributes.add(matcher.group(1).toLowerCase(Locale.ROOT));
+            terms++;
+        }
+        if (attributes.size() != 1 || terms != StringUtils.countMatches(userFilter, "{USERNAME}")) {
+            throw new IllegalArgumentException("user index needs one attribute={USERNAME} term in the user filter ! - FILTER:" + userFilter);
+        }
+        String attribute = attributes.iterator().next();
+        if (StringUtils.isNotEmpty(configured) && !configured.equalsIgnoreCase(attribute)) {
+            throw new IllegalArgumentException("user index attribute is not the one of the user filter ! - ATTRIBUTE:" + configured
+                    + " FILTER:" + userFilter);
+        }
+        return attribute;
+    }
+
+    void registerGauges() {
+        AuthStats.getInstance().gauge("ldap.user_index.size", () -> {
+            Index index = this.index;
+            return index == null ? 0 : index.users.size();
+        });
+    }
+
+    /**
+     * @return null if the user is not indexed, or not by one DN only. the user must be searched then
+     */
+    String dnOf(String username) {
+        Index index = this.index;
+        if (index == null) {
+            return null;
+        }
+        IndexedDn indexed = index.users.get(username.toLowerCase(Locale.ROOT));
+        if (indexed == null || indexed == AMBIGUOUS) {
+            AuthStats.getInstance().increment("ldap.user_index.misses");
+            return null;
+        }
+        AuthStats.getInstance().increment("ldap.user_index.hits");
+        return indexed.toDn();
+    }
+
+    private void sync() {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Index index = this.index;
+            if (index == null || start - lastReload > reloadNanos) {
+                reload(start);
+            } else {
+                update(index);
+            }
+            success = true;
+        } catch (Exception e) {
+            // keep serving the previous index
+            LOG.error("user index sync fail ! - BASE:{}", userBase, e);
+        } finally {
+            AuthStats.getInstance().record("ldap.user_index.sync", start, success);
+        }
+    }
+
+    private void reload(long now) throws LdapException {
+        Index index = new Index();
+        index.watermark = search(allUsersFilter, null, (username, dn) -> index.put(username, dn, false));
+        this.index = index;
+        lastReload = now;
+        LOG.info("user index loaded - BASE:{} USERNAMES:{} WATERMARK:{}", userBase, index.users.size(), index.watermark);
+    }
+
+    private void update(Index index) throws LdapException {
+        String watermark = index.watermark;
+        if (watermark == null) {
+            return;
+        }
+        String changed = "(" + timestampAttribute + ">=" + FilterEncoder.encodeFilterValue(watermark) + ")";
+        Set<String> matched = new HashSet<>();
+        String next = search("(&" + allUsersFilter + changed + ")", watermark, (username, dn) -> {
+            index.put(username, dn, true);
+            matched.add(dn);
+        });
+        // changed so that the user filter doesn't match anymore, e.g. disabled
+        int[] removed = {0};
+        search("(&(" + usernameAttribute + "=*)" + changed + ")", watermark, (username, dn) -> {
+            if (!matched.contains(dn) && index.remove(username, dn)) {
+                removed[0]++;
+            }
+        });
+        index.watermark = next;
+        LOG.debug("user index updated - USERS:{} REMOVED:{} WATERMARK:{}", matched.size(), removed[0], next);
+    }
+
+    /**
+     * @param consumer lower case username and DN of each entry
+     * @return highest timestamp of the entries, or the given watermark if none is higher
+     */
+    private String search(String filter, String watermark, BiConsumer<String, String> consumer) throws LdapException {
+        SearchRequest searchRequest = new SearchRequestImpl();
+        searchRequest.setBase(userBase);
+        searchRequest.setFilter(filter);
+        searchRequest.setScope(SearchScope.SUBTREE);
+        searchRequest.addAttributes(usernameAttribute, timestampAttribute);
+
+        try (LdapSearchIterator iterator = new LdapSearchIterator(ldapDataSource, searchRequest, ldapDataSource.getPageSize())) {
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                Attribute usernames = entry.get(usernameAttribute);
+                if (usernames == null) {
+                    continue;
+                }
+                // the filter matches any of the values
+                for (Value<?> username : usernames) {
+                    if (username.getString() != null) {
+                        consumer.accept(username.getString().toLowerCase(Locale.ROOT), entry.getDn().getName());
+                    }
+                }
+
+                Attribute timestamp = entry.get(timestampAttribute);
+                // generalized time of the same server sorts as text
+                if (timestamp != null && timestamp.getString() != null
+                        && (watermark == null || timestamp.getString().compareTo(watermark) > 0)) {
+                    watermark = timestamp.getString();
+                }
+            }
+        }
+        return watermark;
+    }
+
+    void close() {
+        syncer.shutdownNow();
+    }
+}
@@ -0,0 +1,113 @@
+package org.elasticsearch.plugin.elasticfence.limit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * token bucket per key, e.g. per username or per remote address.
+ * <p>
+ * a bucket is a single time stamp, the time at which it will be full again (GCRA), updated by compare and set.
+ * a full bucket is the same as no bucket, so buckets are dropped once full, and at most maxKeys are kept.
+ */
+public class RateLimiter {
+    private final static Logger LOG = LogManager.getLogger(RateLimiter.class);
+    private final static long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final String name;
+    private final boolean enabled;
+    // time to earn one token
+    private final long intervalNanos;
+    // time to earn a full bucket
+    private final long burstNanos;
+    private final int maxKeys;
+    private final ConcurrentMap<String, AtomicLong> buckets;
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * @param perSecond tokens earned per second. 0 to disable
+     * @param burst     bucket size, requests allowed at once after a quiet period
+     */
+    public RateLimiter(String name, double perSecond, int burst, int maxKeys) {
+        this.name = name;
+        this.enabled = perSecond > 0;
+        this.intervalNanos = enabled ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond)) : 0;
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.maxKeys = maxKeys;
+        this.buckets = new ConcurrentHashMap<>(enabled ? Math.min(maxKeys, 1024) : 1);
+        if (enabled) {
+            AuthStats.getInstance().gauge("rate_limit." + name + ".keys", buckets::size);
+            LOG.info("rate limit enabled - KEY:{} PER_SECOND:{} BURST:{} MAX_KEYS:{}", name, perSecond, burst, maxKeys);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * take a token of the key.
+     *
+     * @return false if the bucket of the key is empty
+     */
+    public boolean tryAcquire(String key) {
+        if (!enabled || key == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        sweepIfDue(now);
+
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                sweep(now);
+                if (buckets.size() >= maxKeys) {
+                    // every tracked key is being limited. don't grow, and let the new one through
+                    AuthStats.getInstance().increment("rate_limit." + name + ".overflows");
+                    return true;
+                }
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+
+        while (true) {
+            long fullAt = bucket.get();
+            long next = Math.max(fullAt, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    private void sweepIfDue(long now) {
+        long last = lastSweep.get();
+        if (now - last > SWEEP_NANOS && lastSweep.compareAndSet(last, now)) {
+            sweep(now);
+        }
+    }
+
+    /**
+     * drop full buckets. one thread at a time, the others don't wait for it.
+     */
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // a token taken concurrently may be lost with its bucket. harmless, the key was idle
+            buckets.entrySet().removeIf(entry -> entry.getValue().get() <= now);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
@@ -1,28 +1,55 @@
 package org.elasticsearch.plugin.elasticfence.provider;
 
-import com.google.common.base.Charsets;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.elasticsearch.common.settings.Settings;
 
 public abstract class AuthProvider {
 
+    public enum Route {
+        // the user belongs to this provider. its answer is final
+        OWNER,
+        // may know the user
+        CANDIDATE,
+        // can't know the user. not asked
+        SKIP
+    }
+
     public void init(Settings settings) throws Exception {
         // if need impl.
     }
 
+    /**
+     * key of this provider in stats.
+     */
+    public String name() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * true if authenticate may block on a remote service. such providers run on the auth thread pool.
+     */
+    public boolean isBlocking() {
+        return false;
+    }
+
+    /**
+     * whether this provider should be asked about the user. must be cheap, it runs for every request.
+     */
+    public Route route(String username) {
+        return Route.CANDIDATE;
+    }
+
     public Credentials authenticate(String authorization) throws Exception {
-        String credentials = StringUtils.substringAfter(authorization, "Basic").trim();
-        if (StringUtils.isBlank(credentials)) {
-            return null;
-        }
+        return authenticate(BasicAuthorization.parse(authorization));
+    }
 
-        String[] tokens = StringUtils.split(new String(Base64.decodeBase64(credentials), Charsets.UTF_8), ":");
-        if (ArrayUtils.getLength(tokens) != 2) {
+    /**
+     * check an already parsed header. the request handler parses once and passes it to every provider.
+     */
+    public Credentials authenticate(BasicAuthorization authorization) throws Exception {
+        if (authorization == null) {
             return null;
         }
-        return authenticate(tokens[0], tokens[1]);
+        return authenticate(authorization.getUsername(), authorization.getPassword());
     }
 
     protected abstract Credentials authenticate(String username, String password) throws Exception;
@@ -0,0 +1,83 @@
+package org.elasticsearch.plugin.elasticfence.provider;
+
+import com.google.common.base.Charsets;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * username and password of a Basic authorization header. parsed once per request and shared by all providers.
+ */
+@Getter
+@ToString(exclude = "password")
+public class BasicAuthorization {
+    private static final String SCHEME = "Basic";
+
+    private final String username;
+    private final String password;
+
+    private BasicAuthorization(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * the password is everything after the first colon. decoded headers are not kept, as they hold the plaintext password.
+     *
+     * @return null if the header is not a valid Basic authorization
+     */
+    public static BasicAuthorization parse(String header) {
+        if (header == null || !header.regionMatches(true, 0, SCHEME, 0, SCHEME.length())) {
+            return null;
+        }
+        int begin = SCHEME.length();
+        int end = header.length();
+        while (begin < end && header.charAt(begin) <= ' ') {
+            begin++;
+        }
+        while (end > begin && header.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (begin == SCHEME.length() || begin == end) {
+            return null;
+        }
+
+        byte[] encoded = new byte[end - begin];
+        for (int i = 0; i < encoded.length; i++) {
+            char c = header.charAt(begin + i);
+            if (c > 0x7f) {
+                return null;
+            }
+            encoded[i] = (byte) c;
+        }
+        ByteBuffer decoded;
+        try {
+            decoded = Base64.getDecoder().decode(ByteBuffer.wrap(encoded));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        byte[] bytes = decoded.array();
+        int length = decoded.remaining();
+        int colon = -1;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        try {
+            if (colon <= 0 || colon == length - 1) {
+                return null;
+            }
+            return new BasicAuthorization(
+                    new String(bytes, 0, colon, Charsets.UTF_8),
+                    new String(bytes, colon + 1, length - colon - 1, Charsets.UTF_8));
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+}
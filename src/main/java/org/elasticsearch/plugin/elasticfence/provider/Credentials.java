@@ -1,19 +1,65 @@
 package org.elasticsearch.plugin.elasticfence.provider;
 
+import com.google.common.base.Charsets;
 import lombok.Builder;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.ToString;
 
-import java.util.Date;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
-@Builder
+/**
+ * authenticated user. the password is kept only as a salted SHA-256 verifier.
+ */
 @Getter
-@ToString(exclude = "password")
+@ToString(exclude = {"salt", "verifier"})
 public class Credentials {
-    private String username;
-    private String password;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int SALT_LENGTH = 16;
 
-    @Setter
-    private Date expired;
+    private final String username;
+    private final byte[] salt;
+    private final byte[] verifier;
+    private final long created;
+
+    @Builder
+    private Credentials(String username, String password) {
+        this.username = username;
+        this.created = System.currentTimeMillis();
+        this.salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        this.verifier = digest(salt, password);
+    }
+
+    private Credentials(String username, byte[] salt, byte[] verifier, long created) {
+        this.username = username;
+        this.salt = salt;
+        this.verifier = verifier;
+        this.created = created;
+    }
+
+    /**
+     * rebuild a login verified elsewhere, from its verifier. the password is never needed.
+     */
+    public static Credentials restore(String username, byte[] salt, byte[] verifier, long created) {
+        return new Credentials(username, salt, verifier, created);
+    }
+
+    /**
+     * constant time comparison against the stored verifier.
+     */
+    public boolean matches(String password) {
+        return password != null && MessageDigest.isEqual(verifier, digest(salt, password));
+    }
+
+    private static byte[] digest(byte[] salt, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes(Charsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported !", e);
+        }
+    }
 }
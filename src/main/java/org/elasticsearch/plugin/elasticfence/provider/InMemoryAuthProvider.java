@@ -1,31 +1,65 @@
 package org.elasticsearch.plugin.elasticfence.provider;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.plugin.elasticfence.cache.CacheSnapshot;
+import org.elasticsearch.plugin.elasticfence.cache.SharedAuthCache;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
 
-import java.util.Date;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
-import static org.elasticsearch.plugin.elasticfence.Constants.SETTINGS_ROOT_PASSWORD;
-import static org.elasticsearch.plugin.elasticfence.Constants.SETTINGS_ROOT_USERNAME;
+import static org.elasticsearch.plugin.elasticfence.Constants.*;
 
 public class InMemoryAuthProvider extends AuthProvider {
     private final static Logger LOG = LogManager.getLogger(InMemoryAuthProvider.class);
 
-    private final Map<String, Credentials> map = new HashMap<>();
+    // configured users. never expire
+    private final Map<String, Credentials> users = new ConcurrentHashMap<>();
+    // cached logins of other providers
+    private volatile Cache<String, Credentials> cache = CacheBuilder.newBuilder().maximumSize(0).build();
+    private volatile ScheduledExecutorService sweeper;
+    private volatile long expireMillis;
+    private volatile long refreshAheadMillis;
+    // expired logins are kept this long for use while ldap is down
+    private volatile long staleMillis;
+    private int maxSize;
+    // revalidates a cached login with its username and password
+    private volatile BiConsumer<String, String> refresher;
+    // other nodes of the cluster, if the cache is shared
+    private volatile SharedAuthCache sharedCache;
+    // logins of other nodes are taken only if this node caches and shares too
+    private volatile boolean cacheEnabled;
+    private volatile boolean shared;
+    // last eviction time per user, and of all users. a login published before is older than the eviction and dropped
+    private final Map<String, Long> evictedAt = new ConcurrentHashMap<>();
+    private volatile long allEvictedAt;
+    // where cached logins survive a restart. null if not configured
+    private Path snapshotFile;
+    private volatile CacheSnapshot snapshot;
 
     private InMemoryAuthProvider() {
     }
 
     @Override
-    public void init(Settings settings) {
+    public synchronized void init(Settings settings) {
         String rootUsername = settings.get(SETTINGS_ROOT_USERNAME);
         String rootPassword = settings.get(SETTINGS_ROOT_PASSWORD);
         if (StringUtils.isNotBlank(rootUsername) && StringUtils.isNotBlank(rootPassword)) {
-            add(rootUsername, Credentials.builder()
+            users.put(rootUsername, Credentials.builder()
                     .username(rootUsername)
                     .password(rootPassword)
                     .build());
@@ -33,32 +67,308 @@ public class InMemoryAuthProvider extends AuthProvider {
         } else {
             throw new IllegalArgumentException("undefiend root user !");
         }
+
+        maxSize = settings.getAsInt(SETTINGS_LDAP_CACHE_MAX_SIZE, 10000);
+        int expireSeconds = settings.getAsInt(SETTINGS_LDAP_CACHE_EXPIRE_SECONDS, 3600);
+        int sweepSeconds = settings.getAsInt(SETTINGS_LDAP_CACHE_SWEEP_SECONDS, 60);
+        expireMillis = TimeUnit.SECONDS.toMillis(expireSeconds);
+        refreshAheadMillis = TimeUnit.SECONDS.toMillis(settings.getAsInt(SETTINGS_LDAP_CACHE_REFRESH_AHEAD_SECONDS, 0));
+        staleMillis = TimeUnit.SECONDS.toMillis(settings.getAsInt(SETTINGS_LDAP_CACHE_STALE_SECONDS, 0));
+        cacheEnabled = settings.getAsBoolean(SETTINGS_LDAP_CACHE_ENABLED, false);
+        shared = settings.getAsBoolean(SETTINGS_LDAP_CACHE_SHARED, false);
+        cache = buildCache(maxSize, expireMillis, staleMillis);
+        AuthStats.getInstance().gauge("cache.size", () -> cache.size());
+
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("elasticfence_cache_sweeper"));
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+
+        int snapshotSeconds = settings.getAsInt(SETTINGS_LDAP_CACHE_SNAPSHOT_SECONDS, 0);
+        if (snapshotSeconds > 0 && snapshotFile != null) {
+            // a secret of its own. the snapshot must not be readable with the root password
+            String snapshotKey = settings.get(SETTINGS_LDAP_CACHE_SNAPSHOT_KEY);
+            if (StringUtils.isBlank(snapshotKey)) {
+                throw new IllegalArgumentException("undefined ldap.cache.snapshot_key ! - required with ldap.cache.snapshot_seconds");
+            }
+            snapshot = new CacheSnapshot(snapshotFile, snapshotKey);
+            // logins are not served from a disabled cache. its first save empties the file
+            if (cacheEnabled) {
+                restoreSnapshot();
+            }
+            sweeper.scheduleWithFixedDelay(this::saveSnapshot, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+        } else {
+            snapshot = null;
+        }
+        LOG.info("auth cache ready - MAX:{} EXPIRE_SECONDS:{}", maxSize, expireSeconds);
+    }
+
+    private void sweep() {
+        cache.cleanUp();
+        // a login older than this is dropped anyway
+        long oldest = System.currentTimeMillis() - expireMillis - staleMillis;
+        evictedAt.values().removeIf(time -> time < oldest);
+    }
+
+    private Cache<String, Credentials> buildCache(int maxSize, long expireMillis, long staleMillis) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireMillis + staleMillis, TimeUnit.MILLISECONDS)
+                .removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        AuthStats.getInstance().increment("cache.evictions");
+                        LOG.debug("evict cached user - USER:{}", notification.getKey());
+                    } else if (notification.getCause() == RemovalCause.EXPIRED) {
+                        AuthStats.getInstance().increment("cache.expirations");
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * swap in a cache of the given size and expiry, with the cached logins of the old one.
+     * hits check the login age anyway, so a shorter expiry applies to the copied logins at once.
+     * a login cached during the copy may be lost, and is looked up again.
+     * nothing changes if the new cache can't be built, e.g. for a negative expiry.
+     */
+    private synchronized void rebuildCache(int maxSize, long expireMillis, long staleMillis) {
+        Cache<String, Credentials> rebuilt = buildCache(maxSize, expireMillis, staleMillis);
+        rebuilt.putAll(cache.asMap());
+        this.maxSize = maxSize;
+        this.expireMillis = expireMillis;
+        this.staleMillis = staleMillis;
+        cache = rebuilt;
+        LOG.info("auth cache rebuilt - MAX:{} EXPIRE_SECONDS:{} STALE_SECONDS:{} USERS:{}",
+                maxSize, TimeUnit.MILLISECONDS.toSeconds(expireMillis), TimeUnit.MILLISECONDS.toSeconds(staleMillis), rebuilt.size());
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        rebuildCache(maxSize, expireMillis, staleMillis);
+    }
+
+    public synchronized void setExpireSeconds(int expireSeconds) {
+        rebuildCache(maxSize, TimeUnit.SECONDS.toMillis(expireSeconds), staleMillis);
+    }
+
+    public synchronized void setStaleSeconds(int staleSeconds) {
+        rebuildCache(maxSize, expireMillis, TimeUnit.SECONDS.toMillis(staleSeconds));
+    }
+
+    public void setRefreshAheadSeconds(int refreshAheadSeconds) {
+        this.refreshAheadMillis = TimeUnit.SECONDS.toMillis(refreshAheadSeconds);
+        LOG.info("auth cache refresh ahead - SECONDS:{}", refreshAheadSeconds);
+    }
+
+    private void restoreSnapshot() {
+        try {
+            long now = System.currentTimeMillis();
+            int restored = 0;
+            for (Credentials credentials : snapshot.read()) {
+                if (!users.containsKey(credentials.getUsername()) && now - credentials.getCreated() <= expireMillis + staleMillis) {
+                    cache.put(credentials.getUsername(), credentials);
+                    restored++;
+                }
+            }
+            LOG.info("restore cached users from snapshot - FILE:{} USERS:{}", snapshot.getFile(), restored);
+        } catch (Exception e) {
+            // start cold
+            LOG.warn("cache snapshot restore fail ! - FILE:{} MSG:{}", snapshot.getFile(), e.getMessage());
+        }
+    }
+
+    /**
+     * write cached logins to the snapshot file, if configured. one writer at a time, as all write the same temp file.
+     */
+    public synchronized void saveSnapshot() {
+        CacheSnapshot snapshot = this.snapshot;
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            snapshot.write(cache.asMap().values());
+            AuthStats.getInstance().increment("cache.snapshot.writes");
+            LOG.debug("save cached users to snapshot - FILE:{} USERS:{}", snapshot.getFile(), cache.size());
+        } catch (Exception e) {
+            AuthStats.getInstance().increment("cache.snapshot.errors");
+            LOG.error("cache snapshot save fail ! - FILE:{}", snapshot.getFile(), e);
+        }
+    }
+
+    /**
+     * stop the sweeper, and write the freshest snapshot for the next start. not synchronized, as a running save holds the lock
+     * while the sweeper is waited for.
+     */
+    public void close() {
+        ScheduledExecutorService sweeper = this.sweeper;
+        if (sweeper != null) {
+            sweeper.shutdown();
+            try {
+                sweeper.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        saveSnapshot();
+    }
+
+    /**
+     * must be set before init to restore and save snapshots.
+     */
+    public void setSnapshotFile(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    @Override
+    public String name() {
+        return "in_memory";
+    }
+
+    @Override
+    public Route route(String username) {
+        if (users.containsKey(username)) {
+            return Route.OWNER;
+        }
+        if (cache.asMap().containsKey(username)) {
+            return Route.CANDIDATE;
+        }
+        AuthStats.getInstance().increment("cache.misses");
+        return Route.SKIP;
     }
 
     @Override
     protected Credentials authenticate(String username, String password) {
-        Credentials credentials = map.get(username);
-        if (credentials == null) {
-            return null;
+        Credentials credentials = users.get(username);
+        if (credentials != null) {
+            return credentials.matches(password) ? credentials : null;
         }
-        if (!StringUtils.equals(credentials.getPassword(), password)) {
+
+        credentials = cache.getIfPresent(username);
+        long age = credentials == null ? 0 : System.currentTimeMillis() - credentials.getCreated();
+        if (credentials == null || age > expireMillis || !credentials.matches(password)) {
+            AuthStats.getInstance().increment("cache.misses");
             return null;
         }
+        AuthStats.getInstance().increment("cache.hits");
 
-        Date expired = credentials.getExpired();
-        if (expired == null) {
-            return credentials;
+        // close to expiry. revalidate in background, so that the user never waits for the lookup
+        BiConsumer<String, String> refresher = this.refresher;
+        if (refresher != null && refreshAheadMillis > 0 && age > expireMillis - refreshAheadMillis) {
+            refresher.accept(username, password);
         }
-        if (new Date().before(expired)) {
-            return credentials;
-        } else {
-            map.remove(username);
+        return credentials;
+    }
+
+    /**
+     * a cached login that expired less than ldap.cache.stale_seconds ago. only for when ldap can't be asked.
+     */
+    public Credentials authenticateStale(String username, String password) {
+        if (staleMillis <= 0) {
+            return null;
+        }
+        Credentials credentials = cache.getIfPresent(username);
+        if (credentials == null
+                || System.currentTimeMillis() - credentials.getCreated() > expireMillis + staleMillis
+                || !credentials.matches(password)) {
             return null;
         }
+        return credentials;
     }
 
+    /**
+     * cache a login verified by another provider. expires after ldap.cache.expire_seconds.
+     */
     public void add(String username, Credentials credentials) {
-        map.put(username, credentials);
+        // verified by a lookup that started before the user was evicted
+        if (credentials.getCreated() <= lastEviction(username)) {
+            return;
+        }
+        cache.put(username, credentials);
+        SharedAuthCache sharedCache = this.sharedCache;
+        if (sharedCache != null) {
+            sharedCache.publish(credentials);
+        }
+    }
+
+    /**
+     * cache a login verified on another node. an older copy never replaces a newer one,
+     * and a copy from before an eviction of the user, e.g. still in flight while the user was evicted, is dropped.
+     */
+    public void addShared(Credentials credentials) {
+        if (!cacheEnabled || !shared) {
+            return;
+        }
+        String username = credentials.getUsername();
+        if (users.containsKey(username)
+                || System.currentTimeMillis() - credentials.getCreated() > expireMillis + staleMillis) {
+            return;
+        }
+        if (credentials.getCreated() <= lastEviction(username)) {
+            AuthStats.getInstance().increment("cache.shared.evicted");
+            return;
+        }
+        cache.asMap().merge(username, credentials,
+                (current, published) -> current.getCreated() >= published.getCreated() ? current : published);
+        // evicted meanwhile
+        if (credentials.getCreated() <= lastEviction(username)) {
+            cache.asMap().remove(username, credentials);
+        }
+        AuthStats.getInstance().increment("cache.shared.received");
+    }
+
+    private long lastEviction(String username) {
+        return Math.max(allEvictedAt, evictedAt.getOrDefault(username, 0L));
+    }
+
+    /**
+     * evict a user on this node at once, and on the others if the cache is shared.
+     */
+    public void invalidate(String username) {
+        evict(Collections.singletonList(username));
+        SharedAuthCache sharedCache = this.sharedCache;
+        if (sharedCache != null) {
+            sharedCache.invalidate(username);
+        }
+    }
+
+    /**
+     * evict users on this node only.
+     *
+     * @param usernames empty for all users
+     * @return number of evicted users
+     */
+    public long evict(Collection<String> usernames) {
+        long evicted = 0;
+        long now = System.currentTimeMillis();
+        if (usernames.isEmpty()) {
+            allEvictedAt = now;
+            evicted = cache.size();
+            cache.invalidateAll();
+        } else {
+            for (String username : usernames) {
+                evictedAt.merge(username, now, Math::max);
+                if (cache.asMap().remove(username) != null) {
+                    evicted++;
+                }
+            }
+        }
+        LOG.info("evict cached users - USERS:{} EVICTED:{}", usernames.isEmpty() ? "_all" : usernames, evicted);
+        return evicted;
+    }
+
+    /**
+     * whether logins of other providers are cached. when not, logins published by other nodes are ignored too.
+     */
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    public void setSharedCache(SharedAuthCache sharedCache) {
+        this.sharedCache = sharedCache;
+    }
+
+    public void setRefresher(BiConsumer<String, String> refresher) {
+        this.refresher = refresher;
     }
 
     public static InMemoryAuthProvider getInstance() {
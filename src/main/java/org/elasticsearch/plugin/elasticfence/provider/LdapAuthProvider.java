@@ -1,15 +1,35 @@
 package org.elasticsearch.plugin.elasticfence.provider;
 
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.lang3.time.DateUtils;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.plugin.elasticfence.ldap.LdapAuthService;
+import org.elasticsearch.plugin.elasticfence.ldap.LdapCircuitBreaker;
+import org.elasticsearch.plugin.elasticfence.ldap.LdapUnavailableException;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
 
-import java.util.Date;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.plugin.elasticfence.Constants.*;
 
@@ -17,53 +37,335 @@ public class LdapAuthProvider extends AuthProvider {
     private final static Logger LOG = LogManager.getLogger(LdapAuthProvider.class);
 
     private boolean enabled;
-    private boolean cacheEnabled;
-    private int cacheExpireSeconds;
-    private LdapAuthService ldapService;
+    private volatile boolean cacheEnabled;
+    // settings of init, with dynamic updates since
+    private volatile Settings settings;
+    // replaced as a whole when the servers change. lookups in progress finish on the one they started with,
+    // which is closed after the last of them
+    private volatile LdapAuthService ldapService;
+    private LdapCircuitBreaker breaker;
+    // recent bad passwords, by salted hash of username and password. the salt never leaves this node
+    private Cache<String, Boolean> failures;
+    private final byte[] failureSalt = new byte[16];
+    private final ConcurrentMap<String, InFlight> inFlights = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private volatile Executor executor;
+    private final ExecutorService reconfigurer =
+            Executors.newSingleThreadExecutor(EsExecutors.daemonThreadFactory("elasticfence_ldap_reconfigure"));
 
     private LdapAuthProvider() {
+        new SecureRandom().nextBytes(failureSalt);
     }
 
     @Override
-    public void init(Settings settings) throws Exception {
+    public synchronized void init(Settings settings) throws Exception {
+        this.settings = settings;
         enabled = settings.getAsBoolean(SETTINGS_LDAP_ENABLED, false);
         if (!enabled) {
             LOG.info("ldap auth disabled");
             return;
         }
         cacheEnabled = settings.getAsBoolean(SETTINGS_LDAP_CACHE_ENABLED, false);
-        cacheExpireSeconds = settings.getAsInt(SETTINGS_LDAP_CACHE_EXPIRE_SECONDS, 3600);
+        failures = CacheBuilder.newBuilder()
+                .maximumSize(settings.getAsInt(SETTINGS_LDAP_NEGATIVE_CACHE_MAX_SIZE, 10000))
+                .expireAfterWrite(settings.getAsInt(SETTINGS_LDAP_NEGATIVE_CACHE_EXPIRE_SECONDS, 30), TimeUnit.SECONDS)
+                .build();
 
+        if (ldapService != null) {
+            ldapService.retire();
+        }
         ldapService = new LdapAuthService(settings);
+        ldapService.warmUp();
+        ldapService.registerGauges();
+        breaker = new LdapCircuitBreaker(settings);
+
+        if (cacheEnabled) {
+            InMemoryAuthProvider.getInstance().setRefresher(this::refresh);
+        }
     }
 
-    @Override
-    protected Credentials authenticate(String username, String password) throws Exception {
+    /**
+     * stop or start caching ldap logins. stopping evicts the cached ones, which would be accepted otherwise.
+     */
+    public synchronized void setCacheEnabled(boolean cacheEnabled) {
+        if (!enabled || this.cacheEnabled == cacheEnabled) {
+            return;
+        }
+        this.settings = Settings.builder().put(settings).put(SETTINGS_LDAP_CACHE_ENABLED, cacheEnabled).build();
+        this.cacheEnabled = cacheEnabled;
+        InMemoryAuthProvider.getInstance().setCacheEnabled(cacheEnabled);
+        if (cacheEnabled) {
+            InMemoryAuthProvider.getInstance().setRefresher(this::refresh);
+        } else {
+            InMemoryAuthProvider.getInstance().setRefresher(null);
+            InMemoryAuthProvider.getInstance().evict(Collections.emptyList());
+        }
+        LOG.info("ldap auth cache - ENABLED:{}", cacheEnabled);
+    }
+
+    public synchronized void setPageSize(int pageSize) {
         if (!enabled) {
-            return null;
+            return;
         }
+        this.settings = Settings.builder().put(settings).put(SETTINGS_LDAP_PAGE_SIZE, pageSize).build();
+        ldapService.setPageSize(pageSize);
+        LOG.info("ldap page size - SIZE:{}", pageSize);
+    }
 
-        List<Entry> entries = ldapService.lookup(username, password);
-        if (CollectionUtils.size(entries) != 1) {
+    /**
+     * connect to ldap with a changed setting, e.g. the host list or a timeout. returns at once.
+     * the new connections are ready before they are swapped in, and the old ones are closed once the lookups on them are done.
+     * if no new server answers, the current connections are kept.
+     */
+    public void reconfigure(String key, String value) {
+        // off the cluster state thread, as connecting may take up to the timeout. one change at a time, in order
+        reconfigurer.execute(() -> doReconfigure(key, value));
+    }
+
+    private void doReconfigure(String key, String value) {
+        if (!enabled) {
+            return;
+        }
+        // connect without the lock, so that other setting changes don't wait for it
+        Settings updated = Settings.builder().put(settings).put(key, value).build();
+        LdapAuthService service = null;
+        try {
+            service = new LdapAuthService(updated);
+            service.warmUp();
+            if (!service.probe()) {
+                throw new IllegalStateException("no ldap server answers");
+            }
+        } catch (Exception e) {
+            LOG.error("ldap reconfigure fail ! - keep current connections - KEY:{} VALUE:{}", key, value, e);
+            if (service != null) {
+                service.retire();
+            }
+            return;
+        }
+        LdapAuthService replaced;
+        synchronized (this) {
+            // the page size may have changed meanwhile
+            settings = Settings.builder().put(settings).put(key, value).build();
+            service.setPageSize(settings.getAsInt(SETTINGS_LDAP_PAGE_SIZE, LDAP_PAGE_SIZE));
+            replaced = ldapService;
+            ldapService = service;
+            service.registerGauges();
+        }
+        LOG.info("ldap reconfigured - KEY:{} VALUE:{}", key, value);
+        replaced.retire();
+    }
+
+    /**
+     * executor for background revalidation of cached logins.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public String name() {
+        return "ldap";
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return enabled;
+    }
+
+    @Override
+    public Route route(String username) {
+        return enabled ? Route.CANDIDATE : Route.SKIP;
+    }
+
+    @Override
+    protected Credentials authenticate(String username, String password) throws Exception {
+        if (!enabled) {
             return null;
         }
 
-        Credentials credentials = Credentials.builder()
+        Credentials attempt = Credentials.builder()
                 .username(username)
                 .password(password)
                 .build();
 
+        // concurrent logins with the same password share one ldap lookup
+        InFlight mine = new InFlight(attempt);
+        InFlight current = inFlights.putIfAbsent(username, mine);
+        if (current != null) {
+            if (current.attempt.matches(password)) {
+                LOG.debug("join in-flight ldap lookup - USER:{}", username);
+                AuthStats.getInstance().increment("ldap.coalesced");
+                return current.await(lookupTimeoutMillis());
+            }
+            return lookup(attempt, password);
+        }
+
+        try {
+            Credentials credentials = lookup(attempt, password);
+            mine.future.complete(credentials);
+            return credentials;
+        } catch (Throwable t) {
+            // joiners must not wait for a lookup that ended by an error either
+            mine.future.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlights.remove(username, mine);
+        }
+    }
+
+    /**
+     * longest time of a lookup: user search, bind and group search each up to the timeout, after waiting for a pooled connection.
+     */
+    private long lookupTimeoutMillis() {
+        Settings settings = this.settings;
+        return 3 * settings.getAsLong(SETTINGS_LDAP_TIMEOUT_MILLIS, 30000L) + settings.getAsLong(SETTINGS_LDAP_POOL_MAX_WAIT_MILLIS, 5000L);
+    }
+
+    private Credentials lookup(Credentials attempt, String password) throws Exception {
+        String username = attempt.getUsername();
+        String failure = failureKey(username, password);
+        if (failures.getIfPresent(failure) != null) {
+            LOG.debug("reject recently failed password - USER:{}", username);
+            AuthStats.getInstance().increment("negative_cache.hits");
+            return null;
+        }
+
+        if (!breaker.allow()) {
+            AuthStats.getInstance().increment("ldap.breaker.rejections");
+            Credentials stale = stale(username, password, "circuit breaker open");
+            if (stale != null) {
+                return stale;
+            }
+            // not a rejection. a refresh keeps the cached user, and the password is not negative-cached
+            throw new LdapUnavailableException("ldap circuit breaker open !");
+        }
+        List<Entry> entries;
+        LdapAuthService service = acquireService();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            // user search, bind and group search errors all count against the breaker
+            entries = service.lookup(username, password);
+            success = true;
+        } catch (Exception e) {
+            Credentials stale = stale(username, password, e.getMessage());
+            if (stale != null) {
+                return stale;
+            }
+            throw e;
+        } finally {
+            service.release();
+            breaker.record(start, success);
+        }
+        // ldap answered: no such user, a wrong password or not in the groups. errors were thrown above and are not cached
+        if (CollectionUtils.size(entries) != 1) {
+            failures.put(failure, Boolean.TRUE);
+            return null;
+        }
+
         if (cacheEnabled) {
-            credentials.setExpired(DateUtils.addSeconds(new Date(), cacheExpireSeconds));
-            InMemoryAuthProvider.getInstance().add(username, credentials);
+            InMemoryAuthProvider.getInstance().add(username, attempt);
+        }
+        return attempt;
+    }
+
+    /**
+     * every bad password of a user has its own entry, so that a client cycling through several of them is rejected too.
+     */
+    private String failureKey(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(failureSalt);
+            digest.update(username.getBytes(Charsets.UTF_8));
+            digest.update((byte) 0);
+            return Base64.getEncoder().encodeToString(digest.digest(password.getBytes(Charsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported !", e);
+        }
+    }
+
+    /**
+     * the current service, kept open until released.
+     */
+    private LdapAuthService acquireService() {
+        while (true) {
+            LdapAuthService service = ldapService;
+            // retired and closed since read. a newer one is in place
+            if (service.acquire()) {
+                return service;
+            }
+        }
+    }
+
+    /**
+     * a recently expired cached login, while ldap can't be asked. it is not re-cached, so it runs out after the grace period.
+     */
+    private Credentials stale(String username, String password, String reason) {
+        if (!cacheEnabled) {
+            return null;
+        }
+        Credentials credentials = InMemoryAuthProvider.getInstance().authenticateStale(username, password);
+        if (credentials != null) {
+            LOG.warn("serve stale cached user - USER:{} REASON:{}", username, reason);
+            AuthStats.getInstance().increment("cache.stale_hits");
         }
         return credentials;
     }
 
+    /**
+     * revalidate a cached login in background. the cache entry is replaced on success, and dropped only if ldap rejects the user.
+     * an ldap error is no answer about the user, and the entry is kept until it expires.
+     */
+    private void refresh(String username, String password) {
+        Executor executor = this.executor;
+        if (executor == null || !refreshing.add(username)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    // null is an answer of ldap: no such user, a wrong password or not in the groups
+                    if (authenticate(username, password) == null) {
+                        LOG.info("cached user rejected by ldap - USER:{}", username);
+                        AuthStats.getInstance().increment("cache.refresh.rejections");
+                        InMemoryAuthProvider.getInstance().invalidate(username);
+                    }
+                } catch (Exception e) {
+                    // keep the cached login until it expires
+                    AuthStats.getInstance().increment("cache.refresh.errors");
+                    LOG.warn("cached user refresh fail ! - USER:{} MSG:{}", username, e.getMessage());
+                } finally {
+                    refreshing.remove(username);
+                }
+            });
+        } catch (EsRejectedExecutionException e) {
+            AuthStats.getInstance().increment("rejections.refresh_queue_full");
+            refreshing.remove(username);
+        }
+    }
+
     public static LdapAuthProvider getInstance() {
         return HOLDER._instance;
     }
 
+    private static class InFlight {
+        private final Credentials attempt;
+        private final CompletableFuture<Credentials> future = new CompletableFuture<>();
+
+        private InFlight(Credentials attempt) {
+            this.attempt = attempt;
+        }
+
+        private Credentials await(long timeoutMillis) throws Exception {
+            try {
+                return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+    }
+
     private static class HOLDER {
         private static LdapAuthProvider _instance = new LdapAuthProvider();
     }
@@ -0,0 +1,39 @@
+package org.elasticsearch.plugin.elasticfence.route;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestRequest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.elasticsearch.plugin.elasticfence.Constants.*;
+
+/**
+ * requests let through without authentication, e.g. health checks of load balancers.
+ * a request must match one of the routes and, if sources are configured, come from one of them.
+ */
+public class AnonymousRoutes {
+    private final static Logger LOG = LogManager.getLogger(AnonymousRoutes.class);
+
+    private final RouteMatcher routes;
+    private final CidrMatcher sources;
+
+    public AnonymousRoutes(Settings settings) {
+        List<String> routes = Arrays.asList(settings.getAsArray(SETTINGS_ANONYMOUS_ROUTES));
+        List<String> sources = Arrays.asList(settings.getAsArray(SETTINGS_ANONYMOUS_SOURCES));
+        this.routes = RouteMatcher.compile(routes);
+        this.sources = CidrMatcher.compile(sources);
+        if (!this.routes.isEmpty()) {
+            LOG.info("anonymous routes - ROUTES:{} SOURCES:{}", routes, sources.isEmpty() ? "_all" : sources);
+        }
+    }
+
+    public boolean matches(RestRequest request) {
+        return !routes.isEmpty()
+                // the path as the rest controller routes it. the decoded path may have other segments, e.g. with %2F
+                && routes.matches(request.method(), request.rawPath())
+                && (sources.isEmpty() || sources.matches(request.getRemoteAddress()));
+    }
+}
@@ -0,0 +1,96 @@
+package org.elasticsearch.plugin.elasticfence.route;
+
+import org.elasticsearch.common.network.InetAddresses;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * set of address ranges, e.g. "10.0.0.0/8" or "fd00::/8". an address without a prefix length is a single host.
+ * ranges are parsed once, and a match compares raw address bytes.
+ */
+public class CidrMatcher {
+    private final List<Range> ranges = new ArrayList<>();
+
+    private static class Range {
+        private final byte[] network;
+        private final int prefixLength;
+
+        Range(byte[] network, int prefixLength) {
+            this.network = network;
+            this.prefixLength = prefixLength;
+        }
+
+        boolean contains(byte[] address) {
+            if (address.length != network.length) {
+                return false;
+            }
+            int bytes = prefixLength / 8;
+            for (int i = 0; i < bytes; i++) {
+                if (address[i] != network[i]) {
+                    return false;
+                }
+            }
+            int bits = prefixLength % 8;
+            if (bits == 0) {
+                return true;
+            }
+            int mask = 0xff << (8 - bits);
+            return (address[bytes] & mask) == (network[bytes] & mask);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a range is not an ip address with an optional prefix length
+     */
+    public static CidrMatcher compile(Iterable<String> cidrs) {
+        CidrMatcher matcher = new CidrMatcher();
+        for (String cidr : cidrs) {
+            String[] parts = cidr.trim().split("/");
+            byte[] network;
+            try {
+                // literal addresses only. never a dns lookup
+                network = InetAddresses.forString(parts[0]).getAddress();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid address range ! - CIDR:" + cidr, e);
+            }
+            int prefixLength = network.length * 8;
+            if (parts.length == 2) {
+                try {
+                    prefixLength = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid address range ! - CIDR:" + cidr, e);
+                }
+            }
+            if (parts.length > 2 || prefixLength < 0 || prefixLength > network.length * 8) {
+                throw new IllegalArgumentException("invalid address range ! - CIDR:" + cidr);
+            }
+            matcher.ranges.add(new Range(network, prefixLength));
+        }
+        return matcher;
+    }
+
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    public boolean matches(SocketAddress remoteAddress) {
+        if (!(remoteAddress instanceof InetSocketAddress)) {
+            return false;
+        }
+        InetAddress address = ((InetSocketAddress) remoteAddress).getAddress();
+        if (address == null) {
+            return false;
+        }
+        byte[] bytes = address.getAddress();
+        for (Range range : ranges) {
+            if (range.contains(bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,122 @@
+package org.elasticsearch.plugin.elasticfence.route;
+
+import org.elasticsearch.rest.RestRequest;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * set of method and path patterns, e.g. "GET /_cluster/health", compiled into a trie of path segments per method.
+ * <p>
+ * a "*" segment matches any one segment, and a trailing "**" matches the rest of the path, if any.
+ * the cost of a match depends on the depth of the path, not on the number of patterns.
+ */
+public class RouteMatcher {
+    private static final String ANY_SEGMENT = "*";
+    private static final String ANY_REST = "**";
+
+    private final Map<RestRequest.Method, Node> roots = new EnumMap<>(RestRequest.Method.class);
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Node anySegment;
+        private boolean terminal;
+        private boolean anyRest;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a pattern is not "METHOD /path"
+     */
+    public static RouteMatcher compile(Iterable<String> patterns) {
+        RouteMatcher matcher = new RouteMatcher();
+        for (String pattern : patterns) {
+            matcher.add(pattern);
+        }
+        return matcher;
+    }
+
+    private void add(String pattern) {
+        String[] parts = pattern.trim().split("\\s+");
+        if (parts.length != 2 || !parts[1].startsWith("/")) {
+            throw new IllegalArgumentException("route must be 'METHOD /path' ! - ROUTE:" + pattern);
+        }
+        RestRequest.Method method;
+        try {
+            method = RestRequest.Method.valueOf(parts[0].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown method of route ! - ROUTE:" + pattern, e);
+        }
+
+        Node node = roots.computeIfAbsent(method, key -> new Node());
+        String[] segments = split(parts[1]);
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (ANY_REST.equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("'**' must be the last segment of route ! - ROUTE:" + pattern);
+                }
+                node.anyRest = true;
+                return;
+            }
+            if (ANY_SEGMENT.equals(segment)) {
+                if (node.anySegment == null) {
+                    node.anySegment = new Node();
+                }
+                node = node.anySegment;
+            } else {
+                node = node.children.computeIfAbsent(segment, key -> new Node());
+            }
+        }
+        node.terminal = true;
+    }
+
+    private static String[] split(String path) {
+        String trimmed = path.replaceAll("^/+|/+$", "");
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("/+");
+    }
+
+    public boolean isEmpty() {
+        return roots.isEmpty();
+    }
+
+    /**
+     * a path with an empty segment, e.g. "/idx//_count", never matches. the request dispatcher does not collapse slashes,
+     * and would send it to another handler than the collapsed path. trailing slashes are dropped, as the dispatcher does.
+     */
+    public boolean matches(RestRequest.Method method, String path) {
+        Node root = roots.get(method);
+        if (root == null || path == null) {
+            return false;
+        }
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        String trimmed = path.substring(0, end);
+        if (trimmed.contains("//")) {
+            return false;
+        }
+        return matches(root, trimmed, trimmed.startsWith("/") ? 1 : 0);
+    }
+
+    private static boolean matches(Node node, String path, int begin) {
+        if (node.anyRest) {
+            return true;
+        }
+        if (begin >= path.length()) {
+            return node.terminal;
+        }
+        int end = path.indexOf('/', begin);
+        if (end < 0) {
+            end = path.length();
+        }
+        int next = end + 1;
+        Node child = node.children.get(path.substring(begin, end));
+        if (child != null && matches(child, path, next)) {
+            return true;
+        }
+        return node.anySegment != null && matches(node.anySegment, path, next);
+    }
+}
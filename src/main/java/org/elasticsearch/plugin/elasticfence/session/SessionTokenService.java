@@ -0,0 +1,199 @@
+package org.elasticsearch.plugin.elasticfence.session;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.elasticfence.stats.AuthStats;
+import org.elasticsearch.rest.RestRequest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.plugin.elasticfence.Constants.*;
+
+/**
+ * short lived tokens given to clients after a login, so that their next requests skip the providers.
+ * <p>
+ * a token is [version, expiry, username] and its HMAC-SHA256, both base64url. it is checked by its signature
+ * and expiry only, so any node with the same key accepts it, and nothing is kept on the server.
+ * a token stays valid until it expires, even if the user is evicted from the cache meanwhile.
+ * <p>
+ * a token is given on a password login only, and a client sending a valid one gets no new one. a token past half of its
+ * ttl is renewed by a password login, if the client sends the password along. otherwise it runs out.
+ */
+public class SessionTokenService {
+    private final static Logger LOG = LogManager.getLogger(SessionTokenService.class);
+    public final static String COOKIE_NAME = "elasticfence_session";
+    public final static String HEADER_NAME = "X-Elasticfence-Session";
+    private final static String ALGORITHM = "HmacSHA256";
+    private final static byte VERSION = 1;
+    private final static char SEPARATOR = '.';
+    private final static int ISSUED_MAX_SIZE = 10000;
+
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final ThreadLocal<Mac> mac;
+    // last token per user, given again to clients logging in by password each time, instead of signing a new one
+    private final Cache<String, String> issued;
+
+    public SessionTokenService(Settings settings) {
+        this.enabled = settings.getAsBoolean(SETTINGS_SESSION_ENABLED, false);
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(settings.getAsInt(SETTINGS_SESSION_TTL_SECONDS, 300));
+        // a secret of its own. a leaked key must not be the root password
+        String key = settings.get(SETTINGS_SESSION_KEY);
+        if (enabled && StringUtils.isBlank(key)) {
+            throw new IllegalArgumentException("undefined session.key ! - required with session.enabled");
+        }
+        SecretKeySpec keySpec = enabled ? new SecretKeySpec(key.getBytes(Charsets.UTF_8), ALGORITHM) : null;
+        // Mac is not thread safe
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(keySpec);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC is not available !", e);
+            }
+        });
+        this.issued = CacheBuilder.newBuilder()
+                .maximumSize(ISSUED_MAX_SIZE)
+                .expireAfterWrite(ttlMillis / 4, TimeUnit.MILLISECONDS)
+                .build();
+        if (enabled) {
+            LOG.info("session tokens enabled - TTL_SECONDS:{}", TimeUnit.MILLISECONDS.toSeconds(ttlMillis));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getTtlSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(ttlMillis);
+    }
+
+    /**
+     * a token for a password login. the one given to the user before, while less than a quarter of its ttl has passed.
+     */
+    public String issue(String username) {
+        String token = issued.getIfPresent(username);
+        if (token == null) {
+            token = sign(username);
+            issued.put(username, token);
+        }
+        return token;
+    }
+
+    private String sign(String username) {
+        byte[] name = username.getBytes(Charsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + name.length);
+        payload.put(VERSION).putLong(System.currentTimeMillis() + ttlMillis).put(name);
+        byte[] bytes = payload.array();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        AuthStats.getInstance().increment("session.issued");
+        return encoder.encodeToString(bytes) + SEPARATOR + encoder.encodeToString(mac.get().doFinal(bytes));
+    }
+
+    /**
+     * @return the session of a valid token, or null if the token is forged, expired or malformed
+     */
+    public Session verify(String token) {
+        if (!enabled || token == null) {
+            return null;
+        }
+        int separator = token.indexOf(SEPARATOR);
+        if (separator <= 0) {
+            return invalid();
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payload = decoder.decode(token.substring(0, separator));
+            signature = decoder.decode(token.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            return invalid();
+        }
+        if (!MessageDigest.isEqual(mac.get().doFinal(payload), signature)) {
+            return invalid();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        if (buffer.remaining() <= 1 + 8 || buffer.get() != VERSION) {
+            return invalid();
+        }
+        long expires = buffer.getLong();
+        if (expires < System.currentTimeMillis()) {
+            AuthStats.getInstance().increment("session.expired");
+            return null;
+        }
+        AuthStats.getInstance().increment("session.hits");
+        return new Session(new String(payload, buffer.position(), buffer.remaining(), Charsets.UTF_8), expires);
+    }
+
+    private static Session invalid() {
+        AuthStats.getInstance().increment("session.invalid");
+        return null;
+    }
+
+    /**
+     * the token of the session header, or else of the session cookie.
+     */
+    public String token(RestRequest request) {
+        if (!enabled) {
+            return null;
+        }
+        String token = request.header(HEADER_NAME);
+        if (token != null) {
+            return token;
+        }
+        List<String> cookies = request.getAllHeaderValues("Cookie");
+        if (cookies == null) {
+            return null;
+        }
+        for (String cookie : cookies) {
+            for (String pair : cookie.split(";")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && COOKIE_NAME.equals(pair.substring(0, equals).trim())) {
+                    return pair.substring(equals + 1).trim();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * sent over https only. clients of plain http use the header.
+     */
+    public String cookie(String token) {
+        return COOKIE_NAME + "=" + token + "; Path=/; Max-Age=" + getTtlSeconds() + "; Secure; HttpOnly";
+    }
+
+    @Getter
+    public class Session {
+        private final String username;
+        private final long expires;
+
+        private Session(String username, long expires) {
+            this.username = username;
+            this.expires = expires;
+        }
+
+        /**
+         * past half of its ttl. renewed on a password login.
+         */
+        public boolean isExpiring() {
+            return expires - System.currentTimeMillis() < ttlMillis / 2;
+        }
+    }
+}
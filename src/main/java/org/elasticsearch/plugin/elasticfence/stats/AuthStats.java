@@ -0,0 +1,112 @@
+package org.elasticsearch.plugin.elasticfence.stats;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * per-node counters, latencies and gauges of the plugin. names are dot separated paths, e.g. "ldap.user_bind".
+ */
+public class AuthStats {
+    // per-node values that mean nothing summed: a state, or the same servers and users seen by every node
+    private static final Set<String> NODE_ONLY = ImmutableSet.of(
+            "ldap.breaker.state",
+            "ldap.servers.total",
+            "ldap.servers.healthy",
+            "ldap.user_index.size");
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private AuthStats() {
+    }
+
+    public void increment(String name) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} at the start of the operation
+     */
+    public void record(String name, long startNanos, boolean success) {
+        timers.computeIfAbsent(name, key -> new LatencyHistogram()).record(System.nanoTime() - startNanos, success);
+    }
+
+    /**
+     * current value read on every snapshot. registering the same name again replaces the supplier.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        timers.forEach((name, timer) -> put(snapshot, name, timer.snapshot()));
+        counters.forEach((name, counter) -> put(snapshot, name, counter.sum()));
+        gauges.forEach((name, gauge) -> put(snapshot, name, gauge.getAsLong()));
+        return snapshot;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(Map<String, Object> root, String name, Object value) {
+        Map<String, Object> map = root;
+        String[] path = name.split("\\.");
+        for (int i = 0; i < path.length - 1; i++) {
+            map = (Map<String, Object>) map.computeIfAbsent(path[i], key -> new TreeMap<String, Object>());
+        }
+        Object current = map.get(path[path.length - 1]);
+        if (current instanceof Map && value instanceof Map) {
+            ((Map<String, Object>) current).putAll((Map<String, Object>) value);
+        } else {
+            map.put(path[path.length - 1], value);
+        }
+    }
+
+    /**
+     * sum of several node snapshots. per-node only values are left out, and found in the node snapshots.
+     */
+    public static Map<String, Object> merge(Collection<Map<String, Object>> snapshots) {
+        Map<String, Object> merged = new TreeMap<>();
+        for (Map<String, Object> snapshot : snapshots) {
+            merge(merged, snapshot, "");
+        }
+        return merged;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void merge(Map<String, Object> target, Map<String, Object> source, String prefix) {
+        source.forEach((key, value) -> {
+            String name = prefix + key;
+            if (NODE_ONLY.contains(name)) {
+                return;
+            }
+            Object current = target.get(key);
+            if (value instanceof Map) {
+                Map<String, Object> child = current instanceof Map ? (Map<String, Object>) current : new TreeMap<>();
+                merge(child, (Map<String, Object>) value, name + ".");
+                if (!child.isEmpty()) {
+                    target.put(key, child);
+                }
+            } else if (value instanceof Number) {
+                long sum = ((Number) value).longValue() + (current instanceof Number ? ((Number) current).longValue() : 0L);
+                target.put(key, sum);
+            }
+        });
+    }
+
+    public static AuthStats getInstance() {
+        return HOLDER._instance;
+    }
+
+    private static class HOLDER {
+        private static AuthStats _instance = new AuthStats();
+    }
+}
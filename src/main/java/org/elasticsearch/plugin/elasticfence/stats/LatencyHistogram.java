@@ -0,0 +1,54 @@
+package org.elasticsearch.plugin.elasticfence.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * lock-free latency counter with fixed millisecond buckets. bucket counts of several nodes can simply be summed.
+ */
+class LatencyHistogram {
+    private static final long[] BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length + 1];
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos, boolean success) {
+        count.increment();
+        if (!success) {
+            failures.increment();
+        }
+        totalNanos.add(nanos);
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int i = 0;
+        while (i < BOUNDS_MILLIS.length && millis >= BOUNDS_MILLIS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+    }
+
+    Map<String, Object> snapshot() {
+        Map<String, Object> latency = new TreeMap<>();
+        for (int i = 0; i < buckets.length; i++) {
+            String key = i < BOUNDS_MILLIS.length ? String.format("lt_%05dms", BOUNDS_MILLIS[i]) : "lt_infinity";
+            latency.put(key, buckets[i].sum());
+        }
+
+        Map<String, Object> snapshot = new TreeMap<>();
+        snapshot.put("count", count.sum());
+        snapshot.put("failures", failures.sum());
+        snapshot.put("total_millis", TimeUnit.NANOSECONDS.toMillis(totalNanos.sum()));
+        snapshot.put("latency", latency);
+        return snapshot;
+    }
+}
@@ -0,0 +1,30 @@
+package org.elasticsearch.plugin.elasticfence.stats;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+/**
+ * GET /_elasticfence/stats and GET /_elasticfence/stats/{nodeId}
+ */
+public class RestStatsAction extends BaseRestHandler {
+
+    public RestStatsAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.GET, "/_elasticfence/stats", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_elasticfence/stats/{nodeId}", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        StatsRequest statsRequest = new StatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        if (request.hasParam("timeout")) {
+            statsRequest.timeout(request.param("timeout"));
+        }
+        return channel -> client.execute(StatsAction.INSTANCE, statsRequest, new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,31 @@
+package org.elasticsearch.plugin.elasticfence.stats;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class StatsAction extends Action<StatsRequest, StatsResponse, StatsAction.RequestBuilder> {
+    public static final StatsAction INSTANCE = new StatsAction();
+    public static final String NAME = "cluster:monitor/elasticfence/stats";
+
+    private StatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public StatsResponse newResponse() {
+        return new StatsResponse();
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client, this);
+    }
+
+    public static class RequestBuilder extends NodesOperationRequestBuilder<StatsRequest, StatsResponse, RequestBuilder> {
+
+        RequestBuilder(ElasticsearchClient client, StatsAction action) {
+            super(client, action, new StatsRequest());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.elasticsearch.plugin.elasticfence.stats;
+
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+
+public class StatsRequest extends BaseNodesRequest<StatsRequest> {
+
+    public StatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+}
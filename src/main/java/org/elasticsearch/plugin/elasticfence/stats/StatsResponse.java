@@ -0,0 +1,100 @@
+package org.elasticsearch.plugin.elasticfence.stats;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+public class StatsResponse extends BaseNodesResponse<StatsResponse.NodeResponse> implements ToXContent {
+
+    StatsResponse() {
+    }
+
+    StatsResponse(ClusterName clusterName, List<NodeResponse> nodes, List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(NodeResponse::read);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("cluster_name", getClusterName().value());
+        builder.field("cluster", sorted(AuthStats.merge(getNodes().stream()
+                .map(NodeResponse::getStats)
+                .collect(Collectors.toList()))));
+
+        builder.startObject("nodes");
+        for (NodeResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            builder.field("name", node.getNode().getName());
+            builder.field("host", node.getNode().getHostName());
+            builder.field("stats", sorted(node.getStats()));
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * maps lose their order over the wire
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> sorted(Map<String, Object> map) {
+        Map<String, Object> sorted = new TreeMap<>();
+        map.forEach((key, value) -> sorted.put(key, value instanceof Map ? sorted((Map<String, Object>) value) : value));
+        return sorted;
+    }
+
+    public static class NodeResponse extends BaseNodeResponse {
+        private Map<String, Object> stats;
+
+        NodeResponse() {
+        }
+
+        NodeResponse(DiscoveryNode node, Map<String, Object> stats) {
+            super(node);
+            this.stats = stats;
+        }
+
+        public Map<String, Object> getStats() {
+            return stats;
+        }
+
+        static NodeResponse read(StreamInput in) throws IOException {
+            NodeResponse response = new NodeResponse();
+            response.readFrom(in);
+            return response;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            stats = in.readMap();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeMap(stats);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.elasticsearch.plugin.elasticfence.stats;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+public class TransportStatsAction extends TransportNodesAction<StatsRequest, StatsResponse, StatsRequest.NodeRequest, StatsResponse.NodeResponse> {
+
+    @Inject
+    public TransportStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings, StatsAction.NAME, threadPool, clusterService, transportService, actionFilters, indexNameExpressionResolver,
+                StatsRequest::new, StatsRequest.NodeRequest::new, ThreadPool.Names.MANAGEMENT, StatsResponse.NodeResponse.class);
+    }
+
+    @Override
+    protected StatsResponse newResponse(StatsRequest request, List<StatsResponse.NodeResponse> responses, List<FailedNodeException> failures) {
+        return new StatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected StatsRequest.NodeRequest newNodeRequest(String nodeId, StatsRequest request) {
+        return new StatsRequest.NodeRequest(nodeId);
+    }
+
+    @Override
+    protected StatsResponse.NodeResponse newNodeResponse() {
+        return new StatsResponse.NodeResponse();
+    }
+
+    @Override
+    protected StatsResponse.NodeResponse nodeOperation(StatsRequest.NodeRequest request) {
+        return new StatsResponse.NodeResponse(clusterService.localNode(), AuthStats.getInstance().snapshot());
+    }
+}